@@ -18,9 +18,17 @@ package uk.num.numlib.api;
 
 import lombok.NonNull;
 import uk.num.numlib.exc.NumInvalidParameterException;
+import uk.num.numlib.exc.NumNoRecordAvailableException;
+import uk.num.numlib.internal.util.FutureAdapter;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Future;
 
 public interface NumAPI {
@@ -93,6 +101,84 @@ public interface NumAPI {
      */
     Future<String> retrieveNumRecord(NumAPIContext ctx, NumAPICallbacks handler, int timeoutMillis, final boolean interpret);
 
+    /**
+     * This method uses the module context and the supplied Required User Variable values to obtain a fully expanded
+     * JSON object from DNS without blocking the calling thread.
+     * <p>
+     * The returned CompletionStage completes exceptionally with a NumNoRecordAvailableException if there is no NUM
+     * record, or with the exception that stopped the lookup.
+     *
+     * @param ctx           The context object returned by the begin() method.
+     * @param timeoutMillis the maximum duration of each DNS request, the total wait time could be up to 4 times this value.
+     * @return A CompletionStage for the NumLookupResult
+     */
+    default CompletionStage<NumLookupResult> retrieveNumRecordAsync(NumAPIContext ctx, int timeoutMillis) {
+        return retrieveNumRecordAsync(ctx, timeoutMillis, true);
+    }
+
+    /**
+     * This method uses the module context and the supplied Required User Variable values to obtain a fully expanded
+     * JSON object from DNS without blocking the calling thread.
+     * <p>
+     * The returned CompletionStage completes exceptionally with a NumNoRecordAvailableException if there is no NUM
+     * record, or with the exception that stopped the lookup.
+     * <p>
+     * The default implementation adapts the Future from retrieveNumRecord() without blocking a thread until it
+     * completes.
+     *
+     * @param ctx           The context object returned by the begin() method.
+     * @param timeoutMillis the maximum duration of each DNS request, the total wait time could be up to 4 times this value.
+     * @param interpret     true if the result should be JSON, false for MODL
+     * @return A CompletionStage for the NumLookupResult
+     */
+    default CompletionStage<NumLookupResult> retrieveNumRecordAsync(NumAPIContext ctx, int timeoutMillis, final boolean interpret) {
+        final Future<String> future = retrieveNumRecord(ctx, new NumAPICallbacksDefaultHandler(), timeoutMillis, interpret);
+        return FutureAdapter.toCompletableFuture(future)
+                .thenApply(result -> {
+                    if (result == null) {
+                        throw new CompletionException(new NumNoRecordAvailableException("Cannot retrieve NUM record from any location."));
+                    }
+                    return new NumLookupResult(result, ctx.getLocation(), ctx.isDnsSecSigned(), ctx.isStale());
+                });
+    }
+
+    /**
+     * Look up a batch of NUM records without blocking the calling thread. Duplicate addresses are only looked up once,
+     * and each CompletionStage completes as soon as its own lookup finishes.
+     *
+     * @param numAddresses  NUM-specific URLs, E.g. `num://domain:module/path` or `num://user@domain:module/path`
+     * @param timeoutMillis the maximum duration of each DNS request.
+     * @return a CompletionStage for each address, in the iteration order of numAddresses
+     */
+    default List<CompletionStage<NumLookupResult>> retrieveNumRecords(@NonNull Collection<URL> numAddresses, int timeoutMillis) {
+        return retrieveNumRecords(numAddresses, timeoutMillis, true);
+    }
+
+    /**
+     * Look up a batch of NUM records without blocking the calling thread. Duplicate addresses are only looked up once,
+     * and each CompletionStage completes as soon as its own lookup finishes.
+     * <p>
+     * The default implementation starts a retrieveNumRecordAsync() lookup for every address, including duplicates.
+     *
+     * @param numAddresses  NUM-specific URLs, E.g. `num://domain:module/path` or `num://user@domain:module/path`
+     * @param timeoutMillis the maximum duration of each DNS request.
+     * @param interpret     true if the results should be JSON, false for MODL
+     * @return a CompletionStage for each address, in the iteration order of numAddresses
+     */
+    default List<CompletionStage<NumLookupResult>> retrieveNumRecords(@NonNull Collection<URL> numAddresses, int timeoutMillis, final boolean interpret) {
+        final List<CompletionStage<NumLookupResult>> results = new ArrayList<>(numAddresses.size());
+        for (final URL numAddress : numAddresses) {
+            try {
+                results.add(retrieveNumRecordAsync(begin(numAddress, timeoutMillis), timeoutMillis, interpret));
+            } catch (final NumInvalidParameterException | MalformedURLException e) {
+                final CompletableFuture<NumLookupResult> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                results.add(failed);
+            }
+        }
+        return results;
+    }
+
     /**
      * Stop any outstanding DNS queries still in the Executor.
      */
@@ -64,4 +64,52 @@ public interface NumAPIContext {
      */
     boolean isDnsSecSigned();
 
+    /**
+     * @return the maximum duration of the whole lookup in milliseconds, or 0 if only the individual DNS queries are
+     * timed out. The default implementation has no overall limit.
+     */
+    default long getDeadlineMillis() {
+        return 0;
+    }
+
+    /**
+     * @return true if the lookup failed and the result is the last good result from the cache instead. The default
+     * implementation never uses stale results.
+     */
+    default boolean isStale() {
+        return false;
+    }
+
+    /**
+     * Limit the duration of the whole lookup, including every location, redirect, populator retry and the
+     * interpretation of the record. The lookup fails with a NumLookupTimeoutException when the time runs out.
+     * <p>
+     * Without a deadline the MODL interpreter is allowed the DNS query timeout, rounded up to whole seconds.
+     * <p>
+     * The default implementation ignores the setting.
+     *
+     * @param deadlineMillis the maximum duration in milliseconds, or 0 for no overall limit (the default).
+     */
+    default void setDeadlineMillis(final long deadlineMillis) {
+    }
+
+    /**
+     * @return true if cached NUM records and results should be ignored for this lookup. The default implementation
+     * returns false.
+     */
+    default boolean isBypassCache() {
+        return false;
+    }
+
+    /**
+     * Ignore cached NUM records and results, and query DNS for this lookup. The fresh records and result are still
+     * cached for later lookups.
+     * <p>
+     * The default implementation ignores the setting.
+     *
+     * @param bypassCache true to ignore cached records.
+     */
+    default void setBypassCache(final boolean bypassCache) {
+    }
+
 }
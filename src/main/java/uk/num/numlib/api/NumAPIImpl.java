@@ -15,20 +15,41 @@ import static uk.num.numlib.api.NumAPICallbacks.Location.HOSTED;
 import static uk.num.numlib.api.NumAPICallbacks.Location.INDEPENDENT;
 import static uk.num.numlib.api.NumAPICallbacks.Location.POPULATOR;
 import static uk.num.numlib.api.NumAPICallbacks.Location.STOP;
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import org.apache.commons.lang3.StringUtils;
 import org.xbill.DNS.ExtendedResolver;
 import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Record;
 import lombok.NonNull;
 import lombok.extern.log4j.Log4j2;
 import uk.num.net.NumProtocolSupport;
@@ -36,24 +57,41 @@ import uk.num.numlib.dns.DNSServices;
 import uk.num.numlib.dns.DNSServicesDefaultImpl;
 import uk.num.numlib.exc.NumBadRecordException;
 import uk.num.numlib.exc.NumInvalidDNSHostException;
-import uk.num.numlib.exc.NumInvalidDNSQueryException;
 import uk.num.numlib.exc.NumInvalidParameterException;
 import uk.num.numlib.exc.NumInvalidPopulatorResponseCodeException;
 import uk.num.numlib.exc.NumInvalidRedirectException;
+import uk.num.numlib.exc.NumLookupTimeoutException;
 import uk.num.numlib.exc.NumMaximumRedirectsExceededException;
 import uk.num.numlib.exc.NumNoRecordAvailableException;
 import uk.num.numlib.exc.NumPopulatorErrorException;
-import uk.num.numlib.exc.RrSetHeaderFormatException;
-import uk.num.numlib.exc.RrSetIncompleteException;
-import uk.num.numlib.exc.RrSetNoHeadersException;
+import uk.num.numlib.internal.cache.CachedRecord;
+import uk.num.numlib.internal.cache.PersistentStore;
+import uk.num.numlib.internal.cache.RedirectCache;
+import uk.num.numlib.internal.cache.RecordCache;
+import uk.num.numlib.internal.cache.ResultCache;
+import uk.num.numlib.internal.cache.ZoneDistributionCache;
 import uk.num.numlib.internal.ctx.NumAPIContextBase;
+import uk.num.numlib.internal.dns.AsyncDNSServices;
+import uk.num.numlib.internal.dns.BlockingAsyncDNSServices;
+import uk.num.numlib.internal.dns.ResolverAsyncDNSServices;
+import uk.num.numlib.internal.dns.TXTResponse;
 import uk.num.numlib.internal.modl.ModlServices;
 import uk.num.numlib.internal.modl.NumLookupRedirect;
 import uk.num.numlib.internal.modl.PopulatorResponse;
 import uk.num.numlib.internal.module.ModuleDNSQueries;
 import uk.num.numlib.internal.module.ModuleFactory;
+import uk.num.numlib.internal.module.ModuleRcfCache;
+import uk.num.numlib.internal.util.BoundedCache;
+import uk.num.numlib.internal.util.CancellationScope;
+import uk.num.numlib.internal.util.ConcurrencyLimiter;
+import uk.num.numlib.internal.util.DaemonThreadFactory;
+import uk.num.numlib.internal.util.Deadline;
 import uk.num.numlib.internal.util.LegacyEscapeReplacer;
+import uk.num.numlib.internal.util.LookupExecutor;
 import uk.num.numlib.internal.util.PopulatorRetryConfig;
+import uk.num.numlib.internal.util.SharedFuture;
+import uk.num.numlib.internal.util.VirtualThreads;
+import uk.num.numlib.util.EmailLookupGenerator;
 import uk.num.numlib.util.StringConstants;
 
 /**
@@ -76,25 +114,156 @@ public final class NumAPIImpl implements NumAPI {
    */
   private final ModlServices modlServices;
 
+  /**
+   * The module RCF files, so that interpreting a record doesn't wait for them to be fetched.
+   */
+  private final ModuleRcfCache moduleRcfCache;
+
   /**
    * Supports running DNS queries asynchronously.
    */
-  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  private final ExecutorService executor;
+
+  /**
+   * false if the executor was supplied by the caller, who is then responsible for shutting it down.
+   */
+  private final boolean ownsExecutor;
+
+  /**
+   * Used to time out DNS queries without holding a lookup thread.
+   */
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("num-scheduler"));
 
   /**
    * Services for accessing DNS and processing the resulting records.
    */
   private DNSServices dnsServices;
 
+  /**
+   * Non-blocking DNS queries for the lookup state machine.
+   */
+  private AsyncDNSServices asyncDnsServices;
+
   private String modulesLocation = "https://modules.numprotocol.com/";
 
+  /**
+   * The delay before the HOSTED query is started alongside the INDEPENDENT query, or -1 to query them one after the other.
+   */
+  private int hedgeDelayMillis = -1;
+
+  /**
+   * The maximum number of lookups from a single batch that can be in progress at the same time.
+   */
+  private int maxBatchLookups = 256;
+
+  /**
+   * NUM records from the INDEPENDENT and HOSTED locations, cached for their TTL, and negative answers from every location, cached for their SOA minimum TTL.
+   */
+  private final RecordCache recordCache = new RecordCache(0, TimeUnit.HOURS.toSeconds(1), TimeUnit.MINUTES.toSeconds(5));
+
+  /**
+   * Lookup results from the INDEPENDENT and HOSTED locations, cached until the DNS answers they were built from expire.
+   */
+  private final ResultCache resultCache = new ResultCache();
+
+  /**
+   * The ends of redirect chains, cached until the DNS answers that led to the redirects expire.
+   */
+  private final RedirectCache redirectCache = new RedirectCache();
+
+  /**
+   * The Zone Distribution Record levels for each email domain and location, cached until the records expire.
+   */
+  private final ZoneDistributionCache zoneDistributionCache = new ZoneDistributionCache();
+
+  /**
+   * The module/domain combinations whose records were last found at the HOSTED location.
+   */
+  private final BoundedCache<List<Object>, Boolean> hostedDomains = new BoundedCache<List<Object>, Boolean>(100_000, 0, TimeUnit.SECONDS).expireInBackground(1,
+      TimeUnit.MINUTES);
+
+  /**
+   * How long to check the HOSTED location first for a domain whose records were found there, before checking the INDEPENDENT location first again. 0 disables it.
+   */
+  private volatile long hostedFirstSeconds = 0;
+
+  /**
+   * The maximum number of speculative Zone Distribution Record queries in progress at the same time, or 0 to disable them.
+   */
+  private volatile int zoneDistributionProbeBudget = 0;
+
+  /**
+   * The number of speculative Zone Distribution Record queries in progress.
+   */
+  private final AtomicInteger zoneDistributionProbesInProgress = new AtomicInteger();
+
+  /**
+   * The optional file that the record and result caches are saved to, so they survive a restart.
+   */
+  private PersistentStore persistentStore;
+
+  /**
+   * Lookups in progress, so that identical concurrent lookups can share the same result.
+   */
+  private final ConcurrentMap<List<Object>, SharedFuture<NumLookupResult>> lookupsInProgress = new ConcurrentHashMap<>();
+
+  /**
+   * true if identical concurrent lookups should share the same result.
+   */
+  private boolean coalesceLookups = true;
+
+  /**
+   * Cached results that are read after this fraction of their lifetime are refreshed in the background, or 0 to let them expire.
+   */
+  private double refreshAheadFraction = 0.8;
+
   /**
    * Default constructor to initialise the default DNS services and MODL services.
    */
   public NumAPIImpl() {
+    this(LookupExecutor.DEFAULT_THREADS);
+  }
+
+  /**
+   * Alternative constructor used to set the number of lookups that can run at the same time.
+   *
+   * @param lookupThreads the number of threads in the lookup pool, must be greater than 0.
+   */
+  public NumAPIImpl(final int lookupThreads) {
+    this(new LookupExecutor(lookupThreads), true);
+  }
+
+  /**
+   * Alternative constructor used to run lookups on an ExecutorService supplied by the caller. The caller remains responsible for shutting it down.
+   *
+   * @param executor the ExecutorService to run lookups on.
+   */
+  public NumAPIImpl(@NonNull final ExecutorService executor) {
+    this(executor, false);
+  }
+
+  /**
+   * Create a NumAPIImpl that runs each blocking lookup step, e.g. populator polling and MODL interpretation, on its own virtual thread. Falls back to the default thread pool
+   * before Java 21.
+   *
+   * @return a new NumAPIImpl
+   */
+  public static NumAPIImpl withVirtualThreads() {
+    if (!VirtualThreads.isSupported()) {
+      log.info("Virtual threads are not available, using the default thread pool.");
+      return new NumAPIImpl();
+    }
+    return new NumAPIImpl(VirtualThreads.newVirtualThreadPerTaskExecutor(), true);
+  }
+
+  private NumAPIImpl(final ExecutorService executor, final boolean ownsExecutor) {
     log.info("enter - NumAPI()");
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
     dnsServices = new DNSServicesDefaultImpl();
+    asyncDnsServices = new ResolverAsyncDNSServices(null, scheduler);
     modlServices = new ModlServices();
+    moduleRcfCache = new ModuleRcfCache(executor, null);
     log.info("NumAPI object created.");
     legacyEscapeReplacer = new LegacyEscapeReplacer();
   }
@@ -107,6 +276,7 @@ public final class NumAPIImpl implements NumAPI {
   public NumAPIImpl(final NumDohResolver resolver) {
     this();
     dnsServices = new DNSServicesDefaultImpl(resolver.resolver);
+    asyncDnsServices = new ResolverAsyncDNSServices(resolver.resolver, scheduler);
 
     log.info("enter - NumAPI(resolver)");
     Lookup.setDefaultResolver(resolver.resolver);
@@ -123,6 +293,7 @@ public final class NumAPIImpl implements NumAPI {
   public NumAPIImpl(final DNSServices dnsServices, final String dnsHost) throws NumInvalidDNSHostException {
     this();
     this.dnsServices = dnsServices;
+    this.asyncDnsServices = new BlockingAsyncDNSServices(dnsServices, executor);
 
     log.info("enter - NumAPI({})", dnsHost);
     try {
@@ -155,6 +326,7 @@ public final class NumAPIImpl implements NumAPI {
       final ExtendedResolver resolver = new ExtendedResolver(dnsHosts);
       Lookup.setDefaultResolver(resolver);
       this.dnsServices = new DNSServicesDefaultImpl(resolver);
+      this.asyncDnsServices = new ResolverAsyncDNSServices(resolver, scheduler);
     } catch (UnknownHostException e) {
       log.error("UnknownHostException", e);
       throw new NumInvalidDNSHostException("Invalid DNS host.", e);
@@ -226,15 +398,26 @@ public final class NumAPIImpl implements NumAPI {
     final String path = (StringUtils.isBlank(numAddress.getPath())) ? "/" : numAddress.getPath();
     final String numId = (numAddress.getUserInfo() != null) ? numAddress.getUserInfo() + "@" + numAddress.getHost() + path : numAddress.getHost() + path;
 
-    // Default to module (port) 0
-    final int moduleNumber = (numAddress.getPort() > -1) ? numAddress.getPort() : 0;
+    return begin(moduleNumber(numAddress), numId, timeoutMillis);
+  }
 
+  /**
+   * Initialise a new NumAPIContextBase object for a specific module/NUM ID combination.
+   *
+   * @param moduleNumber  the module number
+   * @param numId         the NUM ID without the module number
+   * @param timeoutMillis the timeout in milliseconds to wait for responses from DNS.
+   * @return a new NumAPIContextBase object.
+   * @throws NumInvalidParameterException on error
+   */
+  private NumAPIContext begin(final int moduleNumber, final String numId, final int timeoutMillis) throws NumInvalidParameterException {
     log.info("enter - begin({}, {}, {})", moduleNumber, numId, timeoutMillis);
     assert timeoutMillis > 0;
 
     // Create the context object and the validated ModuleDNSQueries object.
     final NumAPIContextBase ctx = new NumAPIContextBase();
 
+    // The queries are shared, so the context copies them if a redirect or Zone Distribution Record changes them.
     final ModuleDNSQueries moduleDNSQueries = moduleFactory.getInstance(moduleNumber, numId);
     ctx.setModuleDNSQueries(moduleDNSQueries);
 
@@ -279,11 +462,12 @@ public final class NumAPIImpl implements NumAPI {
     // to the client via the handler.
 
     // Do the rest of the operation asynchronously.
-    // This submits a Callable object, so exceptions should be reported to the user when they call
-    // the get() method on the Future object.
-    log.info("Submitting background query.");
-    final Future<String> future = executor.submit(() -> {
-      final String result = numLookup(ctx, handler, timeoutMillis, interpret);
+    // Exceptions are reported to the user when they call the get() method on the Future object.
+    log.info("Starting background query.");
+    final Deadline deadline = Deadline.start(timeoutMillis, ctx.getDeadlineMillis());
+    final List<Object> resultKey = resultKey((NumAPIContextBase) ctx, interpret);
+    final CompletableFuture<String> lookup = coalescedLookup(ctx, handler, deadline, interpret);
+    final CompletableFuture<String> future = withStaleFallback(withDeadline(lookup, deadline), resultKey, (NumAPIContextBase) ctx, handler).thenApplyAsync(result -> {
       if (result == null) {
         log.info("Unable to retrieve a NUM record.");
         handler.setLocation(null);
@@ -293,355 +477,1192 @@ public final class NumAPIImpl implements NumAPI {
         handler.setResult(result);
         handler.setLocation(ctx.getLocation());
         handler.setSignedDNSSEC(ctx.isDnsSecSigned());
-        // handler.setSignedDNSSEC(ctx.isDnsSecSigned());
         return result;
       }
-    });
+    }, executor);
+    // Cancelling the Future stops the DNS queries, retries and interpretation for this lookup.
+    propagateCancellation(future, lookup);
     log.info("Background query running.");
     return future;
   }
 
   /**
-   * Main lookup method with fairly complex state behaviour to handle the various lookup locations and retry scenarios.
+   * This method uses the module context and the supplied Required User Variable values to obtain a fully expanded JSON object from DNS without blocking the calling thread.
    *
-   * @param ctx           the NumAPIContext
-   * @param handler       the NumAPICallbacks
-   * @param timeoutMillis the timeoutMillis
-   * @param interpret     true if the result should be JSON, false for MODL
-   * @return a NUM record String
-   * @throws NumBadRecordException                    on error
-   * @throws NumInvalidRedirectException              on error
-   * @throws NumInvalidDNSQueryException              on error
-   * @throws NumMaximumRedirectsExceededException     on error
-   * @throws NumNoRecordAvailableException            on error
-   * @throws NumPopulatorErrorException               on error
-   * @throws NumInvalidPopulatorResponseCodeException on error
-   * @throws RrSetIncompleteException                 on error
-   * @throws RrSetHeaderFormatException               on error
-   * @throws RrSetNoHeadersException                  on error
-   */
-  private String numLookup(final NumAPIContext ctx, final NumAPICallbacks handler, final int timeoutMillis, final boolean interpret)
-      throws NumBadRecordException, NumInvalidRedirectException, NumInvalidDNSQueryException, NumMaximumRedirectsExceededException, NumNoRecordAvailableException,
-      NumPopulatorErrorException, NumInvalidPopulatorResponseCodeException, RrSetHeaderFormatException, RrSetIncompleteException, RrSetNoHeadersException {
-    final NumAPIContextBase context = (NumAPIContextBase) ctx;
-    context.setLocation(INDEPENDENT);
-    log.info("Trying the INDEPENDENT location.");
-    do {
-      try {
-        // Attempt to get the record from DNS
-        String numRecord = getNumRecord(timeoutMillis, context);
-
-        // Ignore catch-all TXT records that aren't NUM records
-        if (numRecord != null && !numRecord.matches(MATCH_NUM_RECORDS)) {
-          numRecord = null;
-        }
+   * @param ctx           The context object returned by the begin() method.
+   * @param timeoutMillis the maximum duration of each DNS request, the total wait time could be up to 4 times this value.
+   * @return A CompletionStage for the NumLookupResult
+   */
+  @Override
+  public CompletionStage<NumLookupResult> retrieveNumRecordAsync(final NumAPIContext ctx, final int timeoutMillis) {
+    return retrieveNumRecordAsync(ctx, timeoutMillis, true);
+  }
 
-        // Handle a possible email zone distribution record.
-        final Optional<String> maybeZDR = Optional.ofNullable(numRecord).filter(isZoneDistributionRecord());
-
-        if (maybeZDR.isPresent()) {
-          final Optional<String> maybeNewLookupResult = maybeZDR.map(removeZDRPrefix()).map(Integer::parseInt).map(checkRangeAndLogErrors(context, numRecord))
-              .filter(validZDRRange()).map(handleZoneDistributionRecord(context)).map(s -> {
-                try {
-                  return getNumRecord(timeoutMillis, context);
-                } catch (final Exception e) {
-                  log.error("Failed in lookup: {}", context.getRecordLocation());
-                }
-                return null;
-              });
-
-          numRecord = maybeNewLookupResult.orElse(null);
-        }
+  /**
+   * This method uses the module context and the supplied Required User Variable values to obtain a fully expanded JSON object from DNS without blocking the calling thread.
+   *
+   * @param ctx           The context object returned by the begin() method.
+   * @param timeoutMillis the maximum duration of each DNS request, the total wait time could be up to 4 times this value.
+   * @param interpret     true if the result should be JSON, false for MODL
+   * @return A CompletionStage for the NumLookupResult
+   */
+  @Override
+  public CompletionStage<NumLookupResult> retrieveNumRecordAsync(final NumAPIContext ctx, final int timeoutMillis, final boolean interpret) {
+    log.info("retrieveNumRecordAsync()");
+    assert ctx != null;
 
-        // If that failed then try the hosted record.
-        if (numRecord == null) {
-          log.info("Lookup returned no result.");
-          switch (context.getLocation()) {
-            case INDEPENDENT:
-              if (context.getModuleDNSQueries().getModuleId() != 0) {
-                log.info("Trying the HOSTED location.");
-                context.setLocation(HOSTED);
-              } else {
-                log.info("Module 0 skipping the HOSTED location.");
-                context.setLocation(STOP);
-                return null;
-              }
-              break;
-            case HOSTED:
-              // Only if configured, is a root quiery, and isn't module 0
-              if ((context.isPopulatorQueryRequired() && context.getModuleDNSQueries().isRootQuery())) {
-                log.info("Trying the POPULATOR location.");
-                context.setLocation(POPULATOR);
-              } else {
-                log.info("Not configured to use the POPULATOR location.");
-                context.setLocation(STOP);
-                return null;
-              }
-              // fall through to the POPULATOR
-            case POPULATOR:
-              log.info("Trying the POPULATOR.");
-              final String fromPopulator = getNumRecordFromPopulator(timeoutMillis, context, handler);
-              if (interpret) {
-                handler.setResult(interpretNumRecord(fromPopulator, context, timeoutMillis));
-              } else {
-                handler.setResult(fromPopulator);
-              }
-              return handler.getResult();
-            case STOP:
-            default:
-              return null;
-          }
-        } else {
-          if (interpret) {
-            handler.setResult(interpretNumRecord(numRecord, context, timeoutMillis));
-          } else {
-            handler.setResult(numRecord);
-          }
-          return handler.getResult();
-        }
-      } catch (final NumLookupRedirect numLookupRedirect) {
-        context.setLocation(INDEPENDENT);
-        context.handleQueryRedirect(numLookupRedirect.getRedirect());
+    final NumAPICallbacks handler = new NumAPICallbacksDefaultHandler();
+    final Deadline deadline = Deadline.start(timeoutMillis, ctx.getDeadlineMillis());
+    final List<Object> resultKey = resultKey((NumAPIContextBase) ctx, interpret);
+    final CompletableFuture<String> lookup = coalescedLookup(ctx, handler, deadline, interpret);
+    final CompletableFuture<NumLookupResult> future = withStaleFallback(withDeadline(lookup, deadline), resultKey, (NumAPIContextBase) ctx, handler).thenApplyAsync(result -> {
+      if (result == null) {
+        log.info("Unable to retrieve a NUM record.");
+        ctx.setLocation(null);
+        throw new CompletionException(new NumNoRecordAvailableException("Cannot retrieve NUM record from any location."));
       }
-    } while (true);
+      return new NumLookupResult(result, ctx.getLocation(), ctx.isDnsSecSigned(), ctx.isStale());
+    }, executor);
+    propagateCancellation(future, lookup);
+    return future;
   }
 
   /**
-   * Handle Zone Distribution Records for emails
+   * Look up a batch of NUM records without blocking the calling thread.
    *
-   * @param context the NumAPIContextBase
-   * @return a Consumer of Integers
+   * @param numAddresses  NUM-specific URLs, E.g. `num://domain:module/path` or `num://user@domain:module/path`
+   * @param timeoutMillis the maximum duration of each DNS request.
+   * @return a CompletionStage for each address, in the iteration order of numAddresses
    */
-  private Function<Integer, String> handleZoneDistributionRecord(final NumAPIContextBase context) {
-    return n -> {
-      log.info("Handling a Zone Distribution Record for {}", context.getRecordLocation());
-      try {
-        context.getModuleDNSQueries().setEmailRecordDistributionLevels(n);
-      } catch (final NumInvalidParameterException e) {
-        log.error("Invalid parameter.", e);
-      }
-      return context.getRecordLocation();
-    };
+  @Override
+  public List<CompletionStage<NumLookupResult>> retrieveNumRecords(@NonNull final Collection<URL> numAddresses, final int timeoutMillis) {
+    return retrieveNumRecords(numAddresses, timeoutMillis, true);
   }
 
   /**
-   * Range check for Zone Distribution Records
+   * Look up a batch of NUM records without blocking the calling thread. Duplicate addresses, after ignoring the case of the domain and applying the default module and path, are
+   * only looked up once, and no more than the configured number of lookups are in progress at the same time. Cancelling the CompletionStages for every duplicate of an address
+   * cancels its lookup and lets the next one start.
    *
-   * @return a Predicate
+   * @param numAddresses  NUM-specific URLs, E.g. `num://domain:module/path` or `num://user@domain:module/path`
+   * @param timeoutMillis the maximum duration of each DNS request.
+   * @param interpret     true if the results should be JSON, false for MODL
+   * @return a CompletionStage for each address, in the iteration order of numAddresses
    */
-  private Predicate<Integer> validZDRRange() {
-    return n -> n > 0 && n <= 3;
+  @Override
+  public List<CompletionStage<NumLookupResult>> retrieveNumRecords(@NonNull final Collection<URL> numAddresses, final int timeoutMillis, final boolean interpret) {
+    log.info("retrieveNumRecords({} addresses)", numAddresses.size());
+    final ConcurrencyLimiter limiter = new ConcurrencyLimiter(maxBatchLookups);
+    final Map<String, SharedFuture<NumLookupResult>> lookups = new HashMap<>();
+    final List<CompletionStage<NumLookupResult>> results = new ArrayList<>(numAddresses.size());
+    for (final URL numAddress : numAddresses) {
+      if (!"num".equalsIgnoreCase(numAddress.getProtocol())) {
+        results.add(failedFuture(new MalformedURLException("The URL protocol must be 'num'")));
+        continue;
+      }
+      // The same canonical form as begin(), with the domain in lower case.
+      final String path = (StringUtils.isBlank(numAddress.getPath())) ? "/" : numAddress.getPath();
+      final String host = numAddress.getHost()
+          .toLowerCase(Locale.ROOT);
+      final String numId = (numAddress.getUserInfo() != null) ? numAddress.getUserInfo() + "@" + host + path : host + path;
+      final int moduleNumber = moduleNumber(numAddress);
+
+      final String key = moduleNumber + "_" + numId;
+      final SharedFuture<NumLookupResult> existing = lookups.get(key);
+      // Each duplicate gets its own stage, and the lookup is only cancelled when every one of them has been cancelled.
+      if (existing != null && existing.attach()) {
+        results.add(existing.subscribe(Function.identity()));
+        continue;
+      }
+      final SharedFuture<NumLookupResult> shared = new SharedFuture<>();
+      lookups.put(key, shared);
+      shared.setSource(limiter.submit(() -> {
+        try {
+          return retrieveNumRecordAsync(begin(moduleNumber, numId, timeoutMillis), timeoutMillis, interpret);
+        } catch (final NumInvalidParameterException e) {
+          return failedFuture(e);
+        }
+      }));
+      results.add(shared.subscribe(Function.identity()));
+    }
+    log.info("retrieveNumRecords() - {} distinct lookups", lookups.size());
+    return results;
   }
 
   /**
-   * A pass-through function to log an error if the Zone Distribution Record value is out of range
+   * Attach to an identical lookup if there is one in progress, otherwise start a new lookup that later identical lookups can attach to. Lookups are identical if they have the
+   * same module, NUM ID, user variables, interpret flag, populator flag, DNS query timeout and modules location. Lookups with an overall deadline or that bypass the cache are
+   * never shared. Cancelling a lookup only detaches it, so the other callers still get the result.
    *
-   * @param context   the NumAPIContextBase
-   * @param numRecord the ZDR value
-   * @return a pass-through function
+   * @param ctx           the NumAPIContext
+   * @param handler       the NumAPICallbacks, only used if this starts a new lookup
+   * @param deadline      the Deadline for the lookup
+   * @param interpret     true if the result should be JSON, false for MODL
+   * @return a CompletableFuture for the NUM record String, which is null if there is no record
    */
-  private Function<Integer, Integer> checkRangeAndLogErrors(final NumAPIContextBase context, final String numRecord) {
-    return n -> {
-      if (n < 1 || n > 3) {
-        log.error("Invalid Zone Distribution Record number of levels in '{}' when looking up '{}'", numRecord, context.getRecordLocation());
+  private CompletableFuture<String> coalescedLookup(final NumAPIContext ctx, final NumAPICallbacks handler, final Deadline deadline, final boolean interpret) {
+    final NumAPIContextBase context = (NumAPIContextBase) ctx;
+    // The shared lookup runs with the first caller's Deadline, so lookups with an overall deadline don't share it in case that fails a caller with a longer one. Lookups that
+    // bypass the cache want fresh answers, not a lookup that might be using the cache.
+    if (!coalesceLookups || deadline.isBounded() || context.isBypassCache()) {
+      return numLookup(ctx, handler, deadline, interpret);
+    }
+    final List<Object> key = lookupKey(context, deadline, interpret);
+    final Function<NumLookupResult, String> applyToContext = result -> {
+      if (result == null) {
+        return null;
       }
-      return n;
+      context.setLocation(result.getLocation());
+      context.setDnsSecSigned(result.isDnsSecSigned());
+      context.setStale(result.isStale());
+      return result.getJson();
     };
+    while (true) {
+      final SharedFuture<NumLookupResult> inProgress = lookupsInProgress.get(key);
+      if (inProgress != null) {
+        if (inProgress.attach()) {
+          log.info("Attaching to a lookup in progress for {}", key);
+          return inProgress.subscribe(applyToContext);
+        }
+        // Every caller has cancelled the lookup in progress, so start a new one.
+        lookupsInProgress.remove(key, inProgress);
+        continue;
+      }
+      final SharedFuture<NumLookupResult> shared = new SharedFuture<>();
+      if (lookupsInProgress.putIfAbsent(key, shared) != null) {
+        continue;
+      }
+
+      final CompletableFuture<String> lookup = numLookup(context, handler, deadline, interpret);
+      // Remove the entry as soon as the lookup completes so that lookups after this point start afresh.
+      lookup.whenComplete((result, error) -> lookupsInProgress.remove(key, shared));
+      final CompletableFuture<NumLookupResult> source = lookup.thenApply(result -> (result == null) ? null : new NumLookupResult(result, context.getLocation(),
+          context.isDnsSecSigned(), context.isStale()));
+      propagateCancellation(source, lookup);
+      shared.setSource(source);
+      return shared.subscribe(applyToContext);
+    }
   }
 
   /**
-   * A function to remove the ZDR prefix just leaving the numeric value at the end.
+   * Build the key that identifies identical lookups.
    *
-   * @return the de-prefixed ZDR
+   * @param context   the NumAPIContextBase
+   * @param deadline  the Deadline for the lookup
+   * @param interpret true if the result should be JSON, false for MODL
+   * @return a List that can be used as a Map key.
    */
-  private Function<String, String> removeZDRPrefix() {
-    return s -> s.substring(StringConstants.ZONE_DISTRIBUTION_RECORD_PREFIX.length());
+  private List<Object> lookupKey(final NumAPIContextBase context, final Deadline deadline, final boolean interpret) {
+    final ModuleDNSQueries moduleDNSQueries = context.getModuleDNSQueries();
+    final List<Object> key = new ArrayList<>();
+    key.add(moduleDNSQueries.getModuleId());
+    key.add(moduleDNSQueries.getNumId());
+    key.add(interpret);
+    key.add(deadline.getQueryTimeoutMillis());
+    key.add(modulesLocation);
+    key.add(context.isPopulatorQueryRequired());
+    for (final UserVariable v : context.getRequiredUserVariables()) {
+      key.add(v.getKey());
+      key.add(v.getValue());
+    }
+    return key;
   }
 
   /**
-   * A predicate to check whether a NUM record is a ZDR or not.
+   * Main lookup method with fairly complex state behaviour to handle the various lookup locations and retry scenarios. Each step is chained onto the DNS response for the
+   * previous step, so no thread waits for DNS.
    *
-   * @return a Predicate
+   * @param ctx           the NumAPIContext
+   * @param handler       the NumAPICallbacks
+   * @param deadline      the Deadline for the lookup
+   * @param interpret     true if the result should be JSON, false for MODL
+   * @return a CompletableFuture for the NUM record String, which is null if there is no record
    */
-  private Predicate<String> isZoneDistributionRecord() {
-    return s -> s.startsWith(StringConstants.ZONE_DISTRIBUTION_RECORD_PREFIX);
+  private CompletableFuture<String> numLookup(final NumAPIContext ctx, final NumAPICallbacks handler, final Deadline deadline, final boolean interpret) {
+    final NumAPIContextBase context = (NumAPIContextBase) ctx;
+    // The key must be built before any redirects change the NUM ID.
+    final List<Object> resultKey = resultKey(context, interpret);
+    if (!context.isBypassCache()) {
+      final ResultCache.Entry entry = resultCache.get(resultKey);
+      if (entry != null) {
+        final NumLookupResult cached = entry.getResult();
+        log.info("Using the cached result for {}", resultKey);
+        context.setStale(false);
+        if (refreshAheadFraction > 0 && entry.isDueForRefresh(refreshAheadFraction) && resultCache.startRefresh(resultKey)) {
+          refreshInBackground(context, deadline, interpret, resultKey);
+        }
+        context.setLocation(cached.getLocation());
+        context.setDnsSecSigned(cached.isDnsSecSigned());
+        handler.setResult(cached.getJson());
+        return CompletableFuture.completedFuture(handler.getResult());
+      }
+    }
+    context.resetResultExpiry();
+    context.setStale(false);
+    context.setDnsFailure(false);
+    context.setZoneDistributionProbes(null);
+    if (interpret && context.getModuleDNSQueries().getModuleId() > 0) {
+      // The RCF is needed as soon as there is a record to interpret, so fetch it while DNS is being queried.
+      moduleRcfCache.prefetch(rcfUrl(context.getModuleDNSQueries().getModuleId()), deadline.getQueryTimeoutMillis());
+    }
+    if (!context.isBypassCache()) {
+      applyKnownZoneDistribution(context);
+    }
+    final List<Object> redirectKey = RedirectCache.key(context.getModuleDNSQueries());
+    final int redirectsBefore = context.getRedirectCount();
+    final ModuleDNSQueries redirectTargetBefore = context.getRedirectTarget();
+    // Redirects are only found by interpreting records, so uninterpreted lookups never follow them.
+    if (interpret && !context.isBypassCache()) {
+      final RedirectCache.Entry redirect = redirectCache.get(redirectKey);
+      if (redirect != null) {
+        context.followMemoisedRedirects(redirect.getTarget(), redirect.getRedirectCount(), redirect.getExpiresAtNanos());
+      }
+    }
+    final CancellationScope cancellationScope = new CancellationScope();
+    context.setCancellationScope(cancellationScope);
+    final List<Object> affinityKey = affinityKey(context);
+    if (affinityKey != null && hostedDomains.get(affinityKey) != null) {
+      context.setHostedFirst(true);
+      context.setLocation(HOSTED);
+      log.info("The records were at the HOSTED location last time, trying it first.");
+    } else {
+      context.setHostedFirst(false);
+      context.setLocation(INDEPENDENT);
+      log.info("Trying the INDEPENDENT location.");
+    }
+    final CompletableFuture<String> result = new CompletableFuture<>();
+    lookupLocation(context, handler, deadline, interpret).whenComplete((value, error) -> {
+      if (error != null) {
+        result.completeExceptionally(error);
+      } else if (value == null && context.isDnsFailure()) {
+        // A missing record is only a failure if it might be caused by a DNS timeout or error. withStaleFallback() decides what to report.
+        result.completeExceptionally(new NoRecordAfterDnsFailureException());
+      } else {
+        result.complete(value);
+      }
+    });
+    result.whenComplete((value, error) -> {
+      // Redirects that were followed are still valid if the rest of the lookup failed.
+      if (context.getRedirectTarget() != redirectTargetBefore) {
+        redirectCache.put(redirectKey, context.getRedirectTarget(), context.getRedirectCount() - redirectsBefore, context.getRedirectExpiresAtNanos());
+      }
+      // Unused speculative queries are left to finish so that their answers are cached.
+      context.setZoneDistributionProbes(null);
+      if (result.isCancelled()) {
+        log.info("Lookup cancelled.");
+        cancellationScope.cancel();
+      } else if (value != null && !context.isStale() && (context.getLocation() == INDEPENDENT || context.getLocation() == HOSTED)) {
+        resultCache.put(resultKey, new NumLookupResult(value, context.getLocation(), context.isDnsSecSigned(), false), context.getResultExpiresAtNanos());
+        rememberLocation(context);
+      }
+    });
+    return result;
   }
 
   /**
-   * Try retrieving a record from the populator
+   * Build the key for remembering which location a domain's records are at.
    *
-   * @param timeoutMillis The timeout
-   * @param context       The context obtained from the NumAPI.begin() method
-   * @param handler       the handler for asynchronous responses
-   * @return The String result or null
-   * @throws NumPopulatorErrorException               on error
-   * @throws NumNoRecordAvailableException            on error
-   * @throws NumInvalidPopulatorResponseCodeException on error
-   * @throws NumBadRecordException                    on error
-   * @throws NumInvalidDNSQueryException              on error
-   * @throws RrSetIncompleteException                 on error
-   * @throws RrSetHeaderFormatException               on error
-   * @throws RrSetNoHeadersException                  on error
-   */
-  private String getNumRecordFromPopulator(int timeoutMillis, final NumAPIContextBase context, final NumAPICallbacks handler)
-      throws NumPopulatorErrorException, NumNoRecordAvailableException, NumInvalidPopulatorResponseCodeException, NumBadRecordException, NumInvalidDNSQueryException,
-      RrSetHeaderFormatException, RrSetIncompleteException, RrSetNoHeadersException {
-    log.info("getNumRecordFromPopulator()");
-    final String recordLocation = context.getModuleDNSQueries().getPopulatorLocation();
-    if (recordLocation == null) {
+   * @param context the NumAPIContextBase
+   * @return a List that can be used as a Map key, or null if the location shouldn't be remembered.
+   */
+  private List<Object> affinityKey(final NumAPIContextBase context) {
+    final ModuleDNSQueries moduleDNSQueries = context.getModuleDNSQueries();
+    if (hostedFirstSeconds == 0 || moduleDNSQueries.getModuleId() == 0) {
       return null;
     }
-    log.info("Querying the populator service: {}", recordLocation);
+    return Arrays.asList(moduleDNSQueries.getModuleId(), moduleDNSQueries.getDomain());
+  }
 
-    String numRecord = null;
-    while (numRecord == null) {
-      numRecord = getNumRecordNoCache(timeoutMillis, recordLocation, context);
-      if (numRecord == null) {
-        // This is unrecoverable, we should get @status or @error object.
-        break;
+  /**
+   * Remember that the records for a domain are at the HOSTED location, or forget it if they were found at the INDEPENDENT location.
+   *
+   * @param context the NumAPIContextBase of a successful lookup
+   */
+  private void rememberLocation(final NumAPIContextBase context) {
+    final List<Object> affinityKey = affinityKey(context);
+    if (affinityKey == null) {
+      return;
+    }
+    if (context.getLocation() == HOSTED) {
+      // Only remember it until the INDEPENDENT location is due to be checked first again.
+      if (!context.isHostedFirst()) {
+        hostedDomains.put(affinityKey, Boolean.TRUE, hostedFirstSeconds, TimeUnit.SECONDS);
       }
+    } else {
+      hostedDomains.invalidate(affinityKey);
+    }
+  }
 
-      log.info("Response from Populator: {}.", numRecord);
-      // Parse the MODL response
-      final PopulatorResponse response = modlServices.interpretPopulatorResponse(numRecord);
-      if (response.isValid()) {
-        throw new NumInvalidPopulatorResponseCodeException("Bad response received from the populator service.");
+  /**
+   * Query the distributed names straight away if a Zone Distribution Record has been seen recently for the email domain. A record from the INDEPENDENT location applies to
+   * both locations, as it does when it is found during a lookup.
+   *
+   * @param context the NumAPIContextBase
+   */
+  private void applyKnownZoneDistribution(final NumAPIContextBase context) {
+    final String domain = context.getModuleDNSQueries().getEmailDomain();
+    if (domain == null) {
+      return;
+    }
+    try {
+      final ZoneDistributionCache.Entry independent = zoneDistributionCache.get(domain, INDEPENDENT);
+      if (independent != null) {
+        log.info("Using {} known Zone Distribution levels for {}", independent.getLevels(), domain);
+        context.getModifiableModuleDNSQueries().setEmailRecordDistributionLevels(independent.getLevels());
+        context.limitResultExpiry(independent.getExpiresAtNanos());
+        return;
       }
-      // Handle the @status response codes
-      if (response.getStatus() != null) {
-        numRecord = handlePopulatorStatusCodes(timeoutMillis, context, response, handler);
-      }
-      // Handle the @error response codes
-      if (response.getError() != null) {
-        if (response.getError().getCode() == 100) {// Enter the populated zone retry loop
-          log.error("NUM Populator error: {}, {}", response.getError().getCode(), response.getError().getDescription());
-          try {
-            int i = 0;
-            while (i < PopulatorRetryConfig.ERROR_RETRIES) {
-              log.info("Sleeping for {} seconds.", PopulatorRetryConfig.ERROR_RETRY_DELAYS[i]);
-              TimeUnit.MILLISECONDS.sleep(PopulatorRetryConfig.ERROR_RETRY_DELAYS[i]);
-              log.info("Retrying...");
-              numRecord = getNumRecord(timeoutMillis, context);
-
-              final PopulatorResponse retryResponse = modlServices.interpretPopulatorResponse(numRecord);
-              if (retryResponse.getStatus() != null) {
-                return handlePopulatorStatusCodes(timeoutMillis, context, retryResponse, handler);
-              }
-              i++;
-            }
-          } catch (final InterruptedException e) {
-            log.error("Interrupted", e);
-          }
-          log.error("Cannot retrieve NUM record from any location.");
-          throw new NumNoRecordAvailableException("Cannot retrieve NUM record from any location.");
-        } else {
-          log.error("NUM Populator error: {}, {}", response.getError().getCode(), response.getError().getDescription());
-          throw new NumPopulatorErrorException(response.getError().getDescription());
-        }
+      final ZoneDistributionCache.Entry hosted = zoneDistributionCache.get(domain, HOSTED);
+      if (hosted != null) {
+        log.info("Using {} known hosted Zone Distribution levels for {}", hosted.getLevels(), domain);
+        context.getModifiableModuleDNSQueries().setHostedRecordDistributionLevels(hosted.getLevels());
+        context.limitResultExpiry(hosted.getExpiresAtNanos());
       }
+    } catch (final NumInvalidParameterException e) {
+      log.error("Invalid parameter.", e);
     }
-    return numRecord;
   }
 
   /**
-   * Populator status codes tell us how to retry the queries while the populator works in the background to get the necessary data
+   * Use the last good result for a lookup that has failed, if there is one within the maximum staleness.
    *
-   * @param timeoutMillis the timeout
-   * @param context       the NumAPIContextBase object.
-   * @param response      the response from the populator
-   * @param handler       the handler for asynchronous responses
-   * @return null or a valid NUM record
-   * @throws NumNoRecordAvailableException            on error
-   * @throws NumInvalidPopulatorResponseCodeException on error
-   * @throws NumInvalidDNSQueryException              on error
-   * @throws RrSetIncompleteException                 on error
-   * @throws RrSetHeaderFormatException               on error
-   * @throws RrSetNoHeadersException                  on error
-   */
-  private String handlePopulatorStatusCodes(int timeoutMillis, NumAPIContextBase context, PopulatorResponse response, final NumAPICallbacks handler)
-      throws NumNoRecordAvailableException, NumInvalidPopulatorResponseCodeException, NumInvalidDNSQueryException, RrSetHeaderFormatException, RrSetIncompleteException,
-      RrSetNoHeadersException {
-    log.info("handlePopulatorStatusCodes()");
-    String numRecord = null;
-    switch (response.getStatus().getCode()) {
-      case 1:
-        log.info("Populator Status code: 1");
-        // Enter the populated zone retry loop
-        try {
-          //
-          // In a change to the specification, we're going to retry the POPULATOR rather than the
-          // POPULATED
-          // zone because that will be the first to respond when a scraper completes.
-          //
-          context.setLocation(POPULATOR);
-          int i = 0;
-          while (i < PopulatorRetryConfig.RETRY_DELAYS.length) {
-            log.info("Sleeping for {} seconds.", PopulatorRetryConfig.RETRY_DELAYS[i]);
-            TimeUnit.MILLISECONDS.sleep(PopulatorRetryConfig.RETRY_DELAYS[i]);
-            log.info("Retrying...");
-            numRecord = getNumRecord(timeoutMillis, context);
-            if (numRecord != null && !numRecord.contains("@status") && !numRecord.contains("@error")) {
-              try {
-                final String interpretNumRecord = interpretNumRecord(numRecord, context, timeoutMillis);
-                handler.setResult(interpretNumRecord);
-              } catch (final Exception e) {
-                // Log the error but continue anyway
-                log.error("Error in response from the populator.", e);
-              }
-            }
-            i++;
-          }
-          if (numRecord != null && (numRecord.contains("@status") || !numRecord.contains("@error"))) {
-            log.error("Cannot retrieve NUM record from any location.");
-            throw new NumNoRecordAvailableException("Cannot retrieve NUM record from any location.");
-          }
-          return numRecord;
-        } catch (InterruptedException e) {
-          break;
-        }
-      case 2:
-        log.info("Populator Status code: 2");
-        // The record is available at the authoritative server
-        context.setLocation(INDEPENDENT);
-        numRecord = getNumRecord(timeoutMillis, context);
-        if (numRecord == null) {
-          log.error("Cannot retrieve NUM record from any location.");
-          throw new NumNoRecordAvailableException("Cannot retrieve NUM record from any location.");
-        }
-        break;
-      case 3:
-        log.info("Populator Status code: 3");
-        // The record exists in the hosted zone.
-        context.setLocation(HOSTED);
-        numRecord = getNumRecord(timeoutMillis, context);
-        if (numRecord == null) {
-          log.error("Cannot retrieve NUM record from any location.");
-          throw new NumNoRecordAvailableException("Cannot retrieve NUM record from any location.");
-        }
-        break;
-      case PopulatorResponse.VALID_TXT_RECORD_CODE:
-        numRecord = response.getNumRecord();
-        break;
-      default:
-        context.setLocation(null);
-        log.error("Invalid response code from DNS populator service: {}", response.getStatus().getCode());
-        throw new NumInvalidPopulatorResponseCodeException("Invalid response code from DNS populator service: " + response.getStatus().getCode());
+   * @param resultKey the result cache key
+   * @param context   the NumAPIContextBase
+   * @param handler   the NumAPICallbacks
+   * @return the stale result, or null if there isn't one.
+   */
+  private String useStaleResult(final List<Object> resultKey, final NumAPIContextBase context, final NumAPICallbacks handler) {
+    final ResultCache.Entry entry = resultCache.getStale(resultKey);
+    if (entry == null) {
+      return null;
     }
-    return numRecord;
+    log.warn("Lookup failed, serving the last good result for {}", resultKey);
+    final NumLookupResult stale = entry.getResult();
+    context.setLocation(stale.getLocation());
+    context.setDnsSecSigned(stale.isDnsSecSigned());
+    context.setStale(true);
+    handler.setResult(stale.getJson());
+    return handler.getResult();
   }
 
   /**
-   * Interpret the supplied NUM record from DNS.
+   * Only failures that a later lookup might not have are hidden by a stale result. Bad records and redirects are reported so that callers see genuine changes to the records.
    *
-   * @param moduleNumber The module number
-   * @param context      The NumAPIContext
+   * @param cause the reason the lookup failed
+   * @return true if the lookup ran out of time or couldn't reach a server
+   */
+  private static boolean isTransientFailure(final Throwable cause) {
+    return cause instanceof NumLookupTimeoutException || cause instanceof IOException;
+  }
+
+  /**
+   * Serve the last good result if the lookup runs out of time or can't reach a server. This is the only place that decides whether to use a stale result.
+   *
+   * @param lookup    the lookup
+   * @param resultKey the result cache key, built before the lookup started
+   * @param context   the NumAPIContextBase
+   * @param handler   the NumAPICallbacks
+   * @return a CompletableFuture for the lookup result or the stale result
+   */
+  private CompletableFuture<String> withStaleFallback(final CompletableFuture<String> lookup, final List<Object> resultKey, final NumAPIContextBase context,
+      final NumAPICallbacks handler) {
+    return lookup.handle((result, error) -> {
+      if (error == null) {
+        return result;
+      }
+      final Throwable cause = unwrap(error);
+      if (isTransientFailure(cause)) {
+        final String stale = useStaleResult(resultKey, context, handler);
+        if (stale != null) {
+          return stale;
+        }
+      }
+      if (cause instanceof NoRecordAfterDnsFailureException) {
+        return null;
+      }
+      throw (error instanceof CompletionException) ? (CompletionException) error : new CompletionException(error);
+    });
+  }
+
+  /**
+   * Reports that no record was found, but a DNS query failed, so there might be one. It is only passed from numLookup() to withStaleFallback(), which turns it back into
+   * no record if there is no stale result, so that coalesced lookups can each make that decision for themselves.
+   */
+  private static final class NoRecordAfterDnsFailureException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private NoRecordAfterDnsFailureException() {
+      super("No record was found and a DNS query failed.");
+    }
+  }
+
+  /**
+   * Repeat a lookup without using the caches so that its cached result is replaced before it expires. Callers keep getting the cached result in the meantime.
+   *
+   * @param context   the NumAPIContextBase of the lookup that found the cached result, before any redirects
+   * @param deadline  the Deadline of that lookup, for its query timeout
+   * @param interpret true if the result should be JSON, false for MODL
+   * @param resultKey the result cache key, which has been claimed with startRefresh()
+   */
+  private void refreshInBackground(final NumAPIContextBase context, final Deadline deadline, final boolean interpret, final List<Object> resultKey) {
+    log.info("Refreshing the cached result for {}", resultKey);
+    final ModuleDNSQueries moduleDNSQueries = context.getModuleDNSQueries();
+    final NumAPIContextBase refresh;
+    try {
+      refresh = (NumAPIContextBase) begin(moduleDNSQueries.getModuleId(), moduleDNSQueries.getNumId(), deadline.getQueryTimeoutMillis());
+    } catch (final NumInvalidParameterException e) {
+      resultCache.finishRefresh(resultKey);
+      log.error("Unable to refresh {}", resultKey, e);
+      return;
+    }
+    refresh.setRequiredUserVariables(context.getRequiredUserVariables());
+    refresh.setBypassCache(true);
+    numLookup(refresh, new NumAPICallbacksDefaultHandler(), Deadline.start(deadline.getQueryTimeoutMillis(), 0), interpret).whenComplete((result, error) -> {
+      resultCache.finishRefresh(resultKey);
+      if (error != null) {
+        log.warn("Failed to refresh {}: {}", resultKey, unwrap(error).getMessage());
+      }
+    });
+  }
+
+  /**
+   * Build the key for the result cache. User variables are sorted so that the order they were supplied in doesn't matter.
+   *
+   * @param context   the NumAPIContextBase
+   * @param interpret true if the result should be JSON, false for MODL
+   * @return a List that can be used as a Map key.
+   */
+  private List<Object> resultKey(final NumAPIContextBase context, final boolean interpret) {
+    final ModuleDNSQueries moduleDNSQueries = context.getModuleDNSQueries();
+    final List<Object> key = new ArrayList<>();
+    key.add(moduleDNSQueries.getModuleId());
+    key.add(moduleDNSQueries.getNumId());
+    key.add(modulesLocation);
+    key.add(interpret);
+    Arrays.stream(context.getRequiredUserVariables())
+        .sorted(Comparator.comparing(UserVariable::getKey, Comparator.nullsFirst(Comparator.naturalOrder())))
+        .forEach(v -> {
+          key.add(v.getKey());
+          key.add(v.getValue());
+        });
+    return key;
+  }
+
+  /**
+   * Look for a record at the current location of the context, moving on to the next location or following redirects as necessary.
+   *
+   * @param context       the NumAPIContextBase
+   * @param handler       the NumAPICallbacks
+   * @param deadline      the Deadline for the lookup
+   * @param interpret     true if the result should be JSON, false for MODL
+   * @return a CompletableFuture for the NUM record String, which is null if there is no record
+   */
+  private CompletableFuture<String> lookupLocation(final NumAPIContextBase context, final NumAPICallbacks handler, final Deadline deadline, final boolean interpret) {
+    startZoneDistributionProbes(context, deadline);
+    if (hedgeDelayMillis >= 0 && context.getLocation() == INDEPENDENT && context.getModuleDNSQueries().getModuleId() != 0) {
+      return lookupIndependentAndHosted(context, handler, deadline, interpret);
+    }
+    return continueLookup(getNumRecordAsync(deadline, context), context, handler, deadline, interpret);
+  }
+
+  /**
+   * Query the INDEPENDENT location and, after the hedge delay, the HOSTED location at the same time. The INDEPENDENT result takes precedence, so the HOSTED result is only used
+   * if there is no INDEPENDENT record, and the HOSTED query is cancelled if there is one.
+   *
+   * @param context       the NumAPIContextBase
+   * @param handler       the NumAPICallbacks
+   * @param deadline      the Deadline for the lookup
+   * @param interpret     true if the result should be JSON, false for MODL
+   * @return a CompletableFuture for the NUM record String, which is null if there is no record
+   */
+  private CompletableFuture<String> lookupIndependentAndHosted(final NumAPIContextBase context, final NumAPICallbacks handler, final Deadline deadline,
+      final boolean interpret) {
+    final String hostedLocation = context.getModuleDNSQueries().getHostedRecordLocation();
+    final CompletableFuture<CachedRecord> hosted = new CompletableFuture<>();
+    final AtomicBoolean hostedStarted = new AtomicBoolean();
+    final Runnable startHosted = () -> {
+      if (hostedStarted.compareAndSet(false, true) && !hosted.isDone()) {
+        log.info("Hedging with the HOSTED location: {}", hostedLocation);
+        final CompletableFuture<CachedRecord> query = fetchRecord(hostedLocation, context, deadline, true, true);
+        hosted.whenComplete((r, e) -> query.cancel(false));
+        query.whenComplete((r, e) -> {
+          if (e != null) {
+            hosted.completeExceptionally(e);
+          } else {
+            hosted.complete(r);
+          }
+        });
+      }
+    };
+    final ScheduledFuture<?> hedge = scheduler.schedule(startHosted, hedgeDelayMillis, TimeUnit.MILLISECONDS);
+
+    final CompletableFuture<String> numRecord = getNumRecordAsync(deadline, context).thenCompose(independentRecord -> {
+      if (independentRecord != null && independentRecord.matches(MATCH_NUM_RECORDS)) {
+        log.info("Using the INDEPENDENT record, cancelling the HOSTED query.");
+        hedge.cancel(false);
+        hosted.cancel(false);
+        return CompletableFuture.completedFuture(independentRecord);
+      }
+      log.info("Lookup returned no result, using the HOSTED location.");
+      context.setLocation(HOSTED);
+      hedge.cancel(false);
+      startHosted.run();
+      return hosted.thenApply(record -> useRecord(record, context));
+    });
+    numRecord.whenComplete((r, e) -> {
+      if (e != null) {
+        hedge.cancel(false);
+        hosted.cancel(false);
+      }
+    });
+    return continueLookup(numRecord, context, handler, deadline, interpret);
+  }
+
+  /**
+   * Handle the record from the current location, moving on to the next location or following redirects as necessary.
+   *
+   * @param rawRecord     the raw NUM record from the current location
+   * @param context       the NumAPIContextBase
+   * @param handler       the NumAPICallbacks
+   * @param deadline      the Deadline for the lookup
+   * @param interpret     true if the result should be JSON, false for MODL
+   * @return a CompletableFuture for the NUM record String, which is null if there is no record
+   */
+  private CompletableFuture<String> continueLookup(final CompletableFuture<String> rawRecord, final NumAPIContextBase context, final NumAPICallbacks handler,
+      final Deadline deadline, final boolean interpret) {
+    // The record may have arrived on a resolver or scheduler thread, and the rest of the lookup is work for the lookup executor.
+    return rawRecord.thenApplyAsync(numRecord -> {
+      // Ignore catch-all TXT records that aren't NUM records
+      if (numRecord != null && !numRecord.matches(MATCH_NUM_RECORDS)) {
+        return null;
+      }
+      return numRecord;
+    }, executor).thenCompose(numRecord -> handlePossibleZoneDistributionRecord(numRecord, context, deadline)).thenCompose(numRecord -> {
+      if (numRecord == null) {
+        log.info("Lookup returned no result.");
+        return lookupNextLocation(context, handler, deadline, interpret);
+      }
+      return produceResult(numRecord, context, handler, deadline, interpret);
+    }).<CompletableFuture<String>>handle((result, error) -> {
+      if (error == null) {
+        return CompletableFuture.completedFuture(result);
+      }
+      final Throwable cause = unwrap(error);
+      if (cause instanceof NumLookupRedirect) {
+        try {
+          context.setHostedFirst(false);
+          context.setLocation(INDEPENDENT);
+          context.handleQueryRedirect(((NumLookupRedirect) cause).getRedirect());
+        } catch (final Exception e) {
+          return failedFuture(e);
+        }
+        return lookupLocation(context, handler, deadline, interpret);
+      }
+      return failedFuture(cause);
+    }).thenCompose(Function.identity());
+  }
+
+  /**
+   * The current location has no record so move on to the next one.
+   *
+   * @param context       the NumAPIContextBase
+   * @param handler       the NumAPICallbacks
+   * @param deadline      the Deadline for the lookup
+   * @param interpret     true if the result should be JSON, false for MODL
+   * @return a CompletableFuture for the NUM record String, which is null if there is no record
+   */
+  private CompletableFuture<String> lookupNextLocation(final NumAPIContextBase context, final NumAPICallbacks handler, final Deadline deadline, final boolean interpret) {
+    switch (context.getLocation()) {
+      case INDEPENDENT:
+        if (context.isHostedFirst()) {
+          // The HOSTED location has already been checked, so carry on as if it had been checked second.
+          context.setHostedFirst(false);
+          context.setLocation(HOSTED);
+          return lookupNextLocation(context, handler, deadline, interpret);
+        }
+        if (context.getModuleDNSQueries().getModuleId() != 0) {
+          log.info("Trying the HOSTED location.");
+          context.setLocation(HOSTED);
+          return lookupLocation(context, handler, deadline, interpret);
+        }
+        log.info("Module 0 skipping the HOSTED location.");
+        context.setLocation(STOP);
+        return CompletableFuture.completedFuture(null);
+      case HOSTED:
+        if (context.isHostedFirst()) {
+          log.info("Lookup returned no result, trying the INDEPENDENT location.");
+          context.setLocation(INDEPENDENT);
+          startZoneDistributionProbes(context, deadline);
+          return continueLookup(getNumRecordAsync(deadline, context), context, handler, deadline, interpret);
+        }
+        // Only if configured, is a root quiery, and isn't module 0
+        if ((context.isPopulatorQueryRequired() && context.getModuleDNSQueries().isRootQuery())) {
+          log.info("Trying the POPULATOR location.");
+          context.setLocation(POPULATOR);
+        } else {
+          log.info("Not configured to use the POPULATOR location.");
+          context.setLocation(STOP);
+          return CompletableFuture.completedFuture(null);
+        }
+        // fall through to the POPULATOR
+      case POPULATOR:
+        log.info("Trying the POPULATOR.");
+        return getNumRecordFromPopulator(deadline, context).thenCompose(fromPopulator -> context.getCancellationScope()
+            .track(CancellationScope.supplyInterruptibly(() -> {
+              if (interpret) {
+                handler.setResult(interpretNumRecord(fromPopulator, context, deadline));
+              } else {
+                handler.setResult(fromPopulator);
+              }
+              return handler.getResult();
+            }, executor)));
+      case STOP:
+      default:
+        return CompletableFuture.completedFuture(null);
+    }
+  }
+
+  /**
+   * Set the record on the handler, interpreting it on the executor if required.
+   *
+   * @param numRecord     the uninterpreted NUM record.
+   * @param context       the NumAPIContextBase
+   * @param handler       the NumAPICallbacks
+   * @param deadline      the Deadline for the lookup
+   * @param interpret     true if the result should be JSON, false for MODL
+   * @return a CompletableFuture for the result String
+   */
+  private CompletableFuture<String> produceResult(final String numRecord, final NumAPIContextBase context, final NumAPICallbacks handler, final Deadline deadline,
+      final boolean interpret) {
+    if (!interpret) {
+      handler.setResult(numRecord);
+      return CompletableFuture.completedFuture(handler.getResult());
+    }
+    return context.getCancellationScope().track(CancellationScope.supplyInterruptibly(() -> {
+      handler.setResult(interpretNumRecord(numRecord, context, deadline));
+      return handler.getResult();
+    }, executor));
+  }
+
+  /**
+   * If the record is an email Zone Distribution Record then re-query using the distributed locations.
+   *
+   * @param numRecord     the NUM record, or null
+   * @param context       the NumAPIContextBase
+   * @param deadline      the Deadline for the lookup
+   * @return a CompletableFuture for the NUM record, which is null if the ZDR is invalid or there is no distributed record
+   */
+  private CompletableFuture<String> handlePossibleZoneDistributionRecord(final String numRecord, final NumAPIContextBase context, final Deadline deadline) {
+    // Handle a possible email zone distribution record.
+    final Map<String, CompletableFuture<TXTResponse>> probes = takeZoneDistributionProbes(context);
+    final Optional<String> maybeZDR = Optional.ofNullable(numRecord).filter(isZoneDistributionRecord());
+    if (!maybeZDR.isPresent()) {
+      return CompletableFuture.completedFuture(numRecord);
+    }
+    final Optional<String> maybeNewLocation = maybeZDR.map(removeZDRPrefix()).map(Integer::parseInt).map(checkRangeAndLogErrors(context, numRecord)).filter(validZDRRange())
+        .map(handleZoneDistributionRecord(context));
+    if (!maybeNewLocation.isPresent()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    final String newLocation = maybeNewLocation.get();
+    final CompletableFuture<TXTResponse> probe = (probes != null) ? probes.get(newLocation) : null;
+    final CompletableFuture<String> distributedRecord;
+    if (probe != null) {
+      log.info("Using the speculative query for {}", newLocation);
+      distributedRecord = probe.thenApplyAsync(recordFromDns -> useProbeAnswer(newLocation, recordFromDns, context), executor);
+    } else {
+      distributedRecord = getNumRecordAsync(deadline, context);
+    }
+    return distributedRecord.exceptionally(e -> {
+      log.error("Failed in lookup: {}", context.getRecordLocation());
+      return null;
+    });
+  }
+
+  /**
+   * Query the distributed INDEPENDENT locations of an email NUM ID at the same time as the undistributed location, so that a Zone Distribution Record doesn't cost another
+   * round trip. Names that are already cached aren't queried, and no more queries are started once the probe budget is used up. Every answer is cached, so the queries that
+   * aren't used by this lookup can still save a later one.
+   *
+   * @param context  the NumAPIContextBase
+   * @param deadline the Deadline for the lookup
+   */
+  private void startZoneDistributionProbes(final NumAPIContextBase context, final Deadline deadline) {
+    final ModuleDNSQueries moduleDNSQueries = context.getModuleDNSQueries();
+    if (zoneDistributionProbeBudget == 0 || context.getLocation() != INDEPENDENT || context.getZoneDistributionProbes() != null || moduleDNSQueries.getEmailDomain() == null) {
+      return;
+    }
+    final int moduleId = moduleDNSQueries.getModuleId();
+    final Map<String, CompletableFuture<TXTResponse>> probes = new HashMap<>();
+    try {
+      final EmailLookupGenerator generator = new EmailLookupGenerator(moduleDNSQueries.getNumId());
+      // A redirect or a known Zone Distribution Record has already moved the lookup away from the undistributed name.
+      if (!generator.getIndependentLocation(moduleId).equals(moduleDNSQueries.getIndependentRecordLocation())) {
+        return;
+      }
+      for (int levels = 1; levels <= 3; levels++) {
+        final String location = generator.getDistributedIndependentLocation(moduleId, levels);
+        if ((!context.isBypassCache() && recordCache.getEntry(location) != null) || !acquireZoneDistributionProbe()) {
+          continue;
+        }
+        log.info("Speculatively querying {}", location);
+        final CompletableFuture<TXTResponse> query = queryDns(location, context, deadline);
+        query.whenComplete((r, e) -> zoneDistributionProbesInProgress.decrementAndGet());
+        probes.put(location, query.thenApplyAsync(recordFromDns -> cacheProbeAnswer(location, recordFromDns), executor));
+      }
+    } catch (final NumInvalidParameterException e) {
+      log.error("Invalid parameter.", e);
+    }
+    if (!probes.isEmpty()) {
+      context.setZoneDistributionProbes(probes);
+    }
+  }
+
+  /**
+   * Take one speculative Zone Distribution Record query from the budget, if there is room for it.
+   *
+   * @return true if the query can be started
+   */
+  private boolean acquireZoneDistributionProbe() {
+    int inProgress;
+    do {
+      inProgress = zoneDistributionProbesInProgress.get();
+      if (inProgress >= zoneDistributionProbeBudget) {
+        return false;
+      }
+    } while (!zoneDistributionProbesInProgress.compareAndSet(inProgress, inProgress + 1));
+    return true;
+  }
+
+  /**
+   * Remove the speculative Zone Distribution Record queries from the context.
+   *
+   * @param context the NumAPIContextBase
+   * @return the queries keyed by location, or null if there are none
+   */
+  private static Map<String, CompletableFuture<TXTResponse>> takeZoneDistributionProbes(final NumAPIContextBase context) {
+    final Map<String, CompletableFuture<TXTResponse>> probes = context.getZoneDistributionProbes();
+    context.setZoneDistributionProbes(null);
+    return probes;
+  }
+
+  /**
+   * Cache the answer to a speculative Zone Distribution Record query, whether or not the lookup uses it.
+   *
+   * @param location      the DNS query String
+   * @param recordFromDns the DNS response
+   * @return the DNS response
+   */
+  private TXTResponse cacheProbeAnswer(final String location, final TXTResponse recordFromDns) {
+    final CachedRecord record = toCachedRecord(recordFromDns);
+    if (record != null) {
+      recordCache.put(location, record);
+    } else if (recordFromDns.isNegative()) {
+      recordCache.putNegative(location, recordFromDns.getNegativeTtlSeconds());
+    }
+    return recordFromDns;
+  }
+
+  /**
+   * Use the answer to a speculative Zone Distribution Record query as if it had been fetched by the lookup. The answer has already been cached by cacheProbeAnswer().
+   *
+   * @param location      the DNS query String
+   * @param recordFromDns the DNS response
+   * @param context       the NumAPIContextBase
+   * @return The raw NUM record, or null if there is no record.
+   */
+  private String useProbeAnswer(final String location, final TXTResponse recordFromDns, final NumAPIContextBase context) {
+    final RecordCache.Entry cached = recordCache.getEntry(location);
+    if (cached != null) {
+      context.limitResultExpiry(cached.getExpiresAtNanos());
+      return useRecord(cached.getRecord().isNegative() ? null : cached.getRecord(), context);
+    }
+    return useRecord(storeRecord(location, recordFromDns, context, false), context);
+  }
+
+  /**
+   * The module number from a NUM URL.
+   *
+   * @param numAddress the NUM URL
+   * @return the port number, or module 0 if there is no port.
+   */
+  private static int moduleNumber(final URL numAddress) {
+    return (numAddress.getPort() > -1) ? numAddress.getPort() : 0;
+  }
+
+  /**
+   * Remove the CompletionException wrapper, if any.
+   *
+   * @param error a Throwable from a CompletableFuture
+   * @return the underlying cause
+   */
+  private static Throwable unwrap(final Throwable error) {
+    if (error instanceof CompletionException && error.getCause() != null) {
+      return error.getCause();
+    }
+    return error;
+  }
+
+  /**
+   * CompletableFuture.failedFuture() is not available in Java 8
+   *
+   * @param error the Throwable
+   * @param <T>   the result type
+   * @return a CompletableFuture that has completed exceptionally
+   */
+  private static <T> CompletableFuture<T> failedFuture(final Throwable error) {
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(error);
+    return future;
+  }
+
+  /**
+   * Handle Zone Distribution Records for emails
+   *
+   * @param context the NumAPIContextBase
+   * @return a Consumer of Integers
+   */
+  private Function<Integer, String> handleZoneDistributionRecord(final NumAPIContextBase context) {
+    return n -> {
+      log.info("Handling a Zone Distribution Record for {}", context.getRecordLocation());
+      try {
+        context.getModifiableModuleDNSQueries().setEmailRecordDistributionLevels(n);
+        final String domain = context.getModuleDNSQueries().getEmailDomain();
+        if (domain != null) {
+          zoneDistributionCache.put(domain, context.getLocation(), n, context.getResultExpiresAtNanos());
+        }
+      } catch (final NumInvalidParameterException e) {
+        log.error("Invalid parameter.", e);
+      }
+      return context.getRecordLocation();
+    };
+  }
+
+  /**
+   * Range check for Zone Distribution Records
+   *
+   * @return a Predicate
+   */
+  private Predicate<Integer> validZDRRange() {
+    return n -> n > 0 && n <= 3;
+  }
+
+  /**
+   * A pass-through function to log an error if the Zone Distribution Record value is out of range
+   *
+   * @param context   the NumAPIContextBase
+   * @param numRecord the ZDR value
+   * @return a pass-through function
+   */
+  private Function<Integer, Integer> checkRangeAndLogErrors(final NumAPIContextBase context, final String numRecord) {
+    return n -> {
+      if (n < 1 || n > 3) {
+        log.error("Invalid Zone Distribution Record number of levels in '{}' when looking up '{}'", numRecord, context.getRecordLocation());
+      }
+      return n;
+    };
+  }
+
+  /**
+   * A function to remove the ZDR prefix just leaving the numeric value at the end.
+   *
+   * @return the de-prefixed ZDR
+   */
+  private Function<String, String> removeZDRPrefix() {
+    return s -> s.substring(StringConstants.ZONE_DISTRIBUTION_RECORD_PREFIX.length());
+  }
+
+  /**
+   * A predicate to check whether a NUM record is a ZDR or not.
+   *
+   * @return a Predicate
+   */
+  private Predicate<String> isZoneDistributionRecord() {
+    return s -> s.startsWith(StringConstants.ZONE_DISTRIBUTION_RECORD_PREFIX);
+  }
+
+  /**
+   * Try retrieving a record from the populator. Retries are scheduled rather than waited for, so no thread is held while the populator works in the background.
+   *
+   * @param deadline      the Deadline for the lookup
+   * @param context       The context obtained from the NumAPI.begin() method
+   * @return a CompletableFuture for the String result or null
+   */
+  private CompletableFuture<String> getNumRecordFromPopulator(final Deadline deadline, final NumAPIContextBase context) {
+    log.info("getNumRecordFromPopulator()");
+    final String recordLocation = context.getModuleDNSQueries().getPopulatorLocation();
+    if (recordLocation == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    log.info("Querying the populator service: {}", recordLocation);
+
+    // Populator responses change while it works in the background, so only the absence of a populator is cached.
+    return fetchRecord(recordLocation, context, deadline, true, false).thenComposeAsync(record -> {
+      final String numRecord = useRecord(record, context);
+      if (numRecord == null) {
+        // This is unrecoverable, we should get @status or @error object.
+        return CompletableFuture.completedFuture(null);
+      }
+
+      log.info("Response from Populator: {}.", numRecord);
+      // Parse the MODL response
+      final PopulatorResponse response = interpretPopulatorResponse(numRecord);
+      if (response.isValid()) {
+        throw new CompletionException(new NumInvalidPopulatorResponseCodeException("Bad response received from the populator service."));
+      }
+      final CompletableFuture<String> result;
+      if (response.getStatus() != null) {
+        // Handle the @status response codes
+        result = handlePopulatorStatusCodes(deadline, context, response);
+      } else if (response.getError() != null) {
+        // Handle the @error response codes
+        log.error("NUM Populator error: {}, {}", response.getError().getCode(), response.getError().getDescription());
+        if (response.getError().getCode() == 100) {
+          result = retryPopulatorAfterError(deadline, context, 0);
+        } else {
+          throw new CompletionException(new NumPopulatorErrorException(response.getError().getDescription()));
+        }
+      } else {
+        result = CompletableFuture.completedFuture(numRecord);
+      }
+      // Start again if the populator has not given us a record
+      return result.thenCompose(r -> (r == null) ? getNumRecordFromPopulator(deadline, context) : CompletableFuture.completedFuture(r));
+    }, executor);
+  }
+
+  /**
+   * Populator status codes tell us how to retry the queries while the populator works in the background to get the necessary data
+   *
+   * @param deadline      the Deadline for the lookup
+   * @param context       the NumAPIContextBase object.
+   * @param response      the response from the populator
+   * @return a CompletableFuture for null or a valid NUM record
+   */
+  private CompletableFuture<String> handlePopulatorStatusCodes(final Deadline deadline, final NumAPIContextBase context, final PopulatorResponse response) {
+    log.info("handlePopulatorStatusCodes()");
+    switch (response.getStatus().getCode()) {
+      case 1:
+        log.info("Populator Status code: 1");
+        //
+        // In a change to the specification, we're going to retry the POPULATOR rather than the
+        // POPULATED
+        // zone because that will be the first to respond when a scraper completes.
+        //
+        context.setLocation(POPULATOR);
+        return retryPopulator(deadline, context, 0);
+      case 2:
+        log.info("Populator Status code: 2");
+        // The record is available at the authoritative server, so ignore any cached negative answer.
+        context.setLocation(INDEPENDENT);
+        return getNumRecordAsync(deadline, context, false).thenApply(NumAPIImpl::requireRecord);
+      case 3:
+        log.info("Populator Status code: 3");
+        // The record exists in the hosted zone, so ignore any cached negative answer.
+        context.setLocation(HOSTED);
+        return getNumRecordAsync(deadline, context, false).thenApply(NumAPIImpl::requireRecord);
+      case PopulatorResponse.VALID_TXT_RECORD_CODE:
+        return CompletableFuture.completedFuture(response.getNumRecord());
+      default:
+        context.setLocation(null);
+        log.error("Invalid response code from DNS populator service: {}", response.getStatus().getCode());
+        return failedFuture(new NumInvalidPopulatorResponseCodeException("Invalid response code from DNS populator service: " + response.getStatus().getCode()));
+    }
+  }
+
+  /**
+   * Poll the populator until it returns a NUM record or we run out of retries.
+   *
+   * @param deadline      the Deadline for the lookup
+   * @param context       the NumAPIContextBase object, with the location set to POPULATOR
+   * @param attempt       the index into PopulatorRetryConfig.RETRY_DELAYS
+   * @return a CompletableFuture for the NUM record
+   */
+  private CompletableFuture<String> retryPopulator(final Deadline deadline, final NumAPIContextBase context, final int attempt) {
+    if (attempt >= PopulatorRetryConfig.RETRY_DELAYS.length) {
+      log.error("Cannot retrieve NUM record from any location.");
+      return failedFuture(new NumNoRecordAvailableException("Cannot retrieve NUM record from any location."));
+    }
+    log.info("Retrying in {} milliseconds.", PopulatorRetryConfig.RETRY_DELAYS[attempt]);
+    return afterDelay(PopulatorRetryConfig.RETRY_DELAYS[attempt], context, deadline, () -> getNumRecordAsync(deadline, context)).thenCompose(numRecord -> {
+      if (numRecord != null && !numRecord.contains("@status") && !numRecord.contains("@error")) {
+        return CompletableFuture.completedFuture(numRecord);
+      }
+      return retryPopulator(deadline, context, attempt + 1);
+    });
+  }
+
+  /**
+   * Retry the populator after an error code 100, until it returns a status or we run out of retries.
+   *
+   * @param deadline      the Deadline for the lookup
+   * @param context       the NumAPIContextBase object, with the location set to POPULATOR
+   * @param attempt       the index into PopulatorRetryConfig.ERROR_RETRY_DELAYS
+   * @return a CompletableFuture for the NUM record
+   */
+  private CompletableFuture<String> retryPopulatorAfterError(final Deadline deadline, final NumAPIContextBase context, final int attempt) {
+    if (attempt >= PopulatorRetryConfig.ERROR_RETRIES) {
+      log.error("Cannot retrieve NUM record from any location.");
+      return failedFuture(new NumNoRecordAvailableException("Cannot retrieve NUM record from any location."));
+    }
+    log.info("Retrying in {} milliseconds.", PopulatorRetryConfig.ERROR_RETRY_DELAYS[attempt]);
+    return afterDelay(PopulatorRetryConfig.ERROR_RETRY_DELAYS[attempt], context, deadline, () -> getNumRecordAsync(deadline, context)).thenCompose(numRecord -> {
+      if (numRecord != null) {
+        final PopulatorResponse retryResponse = interpretPopulatorResponse(numRecord);
+        if (retryResponse.getStatus() != null) {
+          return handlePopulatorStatusCodes(deadline, context, retryResponse);
+        }
+      }
+      return retryPopulatorAfterError(deadline, context, attempt + 1);
+    });
+  }
+
+  /**
+   * Parse a populator response, wrapping any exception for use in a CompletableFuture.
+   *
+   * @param numRecord the response from the populator
+   * @return a PopulatorResponse
+   */
+  private PopulatorResponse interpretPopulatorResponse(final String numRecord) {
+    try {
+      return modlServices.interpretPopulatorResponse(numRecord);
+    } catch (final NumBadRecordException e) {
+      throw new CompletionException(e);
+    }
+  }
+
+  /**
+   * Run an asynchronous action after a delay without holding a thread while waiting.
+   *
+   * @param delayMillis the delay in milliseconds
+   * @param context     the NumAPIContextBase, for cancellation
+   * @param deadline    the Deadline for the lookup
+   * @param action      supplies the CompletableFuture for the action
+   * @param <T>         the result type
+   * @return a CompletableFuture for the result of the action
+   */
+  private <T> CompletableFuture<T> afterDelay(final int delayMillis, final NumAPIContextBase context, final Deadline deadline, final Supplier<CompletableFuture<T>> action) {
+    if (delayMillis >= deadline.getRemainingMillis()) {
+      // Don't wait for a retry that can't finish in time.
+      return failedFuture(deadline.expired());
+    }
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    final Runnable start = () -> {
+      try {
+        action.get().whenComplete((value, error) -> {
+          if (error != null) {
+            result.completeExceptionally(error);
+          } else {
+            result.complete(value);
+          }
+        });
+      } catch (final RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    };
+    // The scheduler thread is shared by every lookup's timers, so the action itself runs on the lookup executor.
+    final ScheduledFuture<?> scheduled = scheduler.schedule(() -> {
+      try {
+        executor.execute(start);
+      } catch (final RejectedExecutionException e) {
+        result.completeExceptionally(e);
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+    result.whenComplete((value, error) -> {
+      if (result.isCancelled()) {
+        scheduled.cancel(false);
+      }
+    });
+    return context.getCancellationScope().track(result);
+  }
+
+  /**
+   * Cancel a CompletableFuture when another one is cancelled.
+   *
+   * @param from the CompletableFuture that the caller might cancel
+   * @param to   the CompletableFuture to cancel with it
+   */
+  private static void propagateCancellation(final CompletableFuture<?> from, final CompletableFuture<?> to) {
+    from.whenComplete((value, error) -> {
+      if (from.isCancelled()) {
+        to.cancel(true);
+      }
+    });
+  }
+
+  /**
+   * Query DNS with the time left before the deadline, or fail immediately if there is none.
+   *
+   * @param recordLocation the DNS query String
+   * @param context        the NumAPIContextBase, for cancellation
+   * @param deadline       the Deadline for the lookup
+   * @return a CompletableFuture for the DNS response
+   */
+  private CompletableFuture<TXTResponse> queryDns(final String recordLocation, final NumAPIContextBase context, final Deadline deadline) {
+    if (context.getCancellationScope().isCancelled()) {
+      return CancellationScope.cancelledFuture();
+    }
+    if (deadline.isExpired()) {
+      return failedFuture(deadline.expired());
+    }
+    return context.getCancellationScope().track(asyncDnsServices.getRecordFromDns(recordLocation, deadline.getQueryTimeoutMillis()));
+  }
+
+  /**
+   * Fail the lookup when its deadline passes, even if a step is still in progress.
+   *
+   * @param lookup   the lookup
+   * @param deadline the Deadline for the lookup
+   * @param <T>      the result type
+   * @return a CompletableFuture that completes with the lookup result or a NumLookupTimeoutException
+   */
+  private <T> CompletableFuture<T> withDeadline(final CompletableFuture<T> lookup, final Deadline deadline) {
+    if (!deadline.isBounded()) {
+      return lookup;
+    }
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    final ScheduledFuture<?> timeout = scheduler.schedule(() -> {
+      if (result.completeExceptionally(deadline.expired())) {
+        // Stop using resources on a lookup that nobody is waiting for.
+        lookup.cancel(true);
+      }
+    }, deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+    lookup.whenComplete((value, error) -> {
+      timeout.cancel(false);
+      if (error != null) {
+        result.completeExceptionally(error);
+      } else {
+        result.complete(value);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Fail if there is no NUM record.
+   *
+   * @param numRecord the NUM record
+   * @return the NUM record if it isn't null
+   */
+  private static String requireRecord(final String numRecord) {
+    if (numRecord == null) {
+      log.error("Cannot retrieve NUM record from any location.");
+      throw new CompletionException(new NumNoRecordAvailableException("Cannot retrieve NUM record from any location."));
+    }
+    return numRecord;
+  }
+
+  /**
+   * Interpret the supplied NUM record from DNS.
+   *
+   * @param moduleNumber The module number
+   * @param context      The NumAPIContext
    * @param numRecord    The NUM record from DNS
    * @return The JSON String result of the fully expanded NUM record.
    * @throws NumBadRecordException on error
    * @throws NumLookupRedirect     on error
    */
-  private String getInterpretedNumRecordAsJson(final int moduleNumber, final NumAPIContext context, final String numRecord, final int timeoutMillis)
-      throws NumBadRecordException, NumLookupRedirect {
+  private String getInterpretedNumRecordAsJson(final int moduleNumber, final NumAPIContext context, final String numRecord, final Deadline deadline)
+      throws NumBadRecordException, NumLookupRedirect, NumLookupTimeoutException {
     log.info("getInterpretedNumRecordAsJson({}, {})", moduleNumber, numRecord);
     final StringBuilder numRecordBuffer = new StringBuilder();
 
@@ -656,17 +1677,26 @@ public final class NumAPIImpl implements NumAPI {
       }
     }
     if (moduleNumber > 0) {
-      numRecordBuffer.append("*load=\"");
-      numRecordBuffer.append(modulesLocation);
-      numRecordBuffer.append(moduleNumber);
-      numRecordBuffer.append("/rcf.txt!\";");
+      // Give the interpreter the cached RCF so that it doesn't fetch it again.
+      numRecordBuffer.append(moduleRcfCache.getModl(rcfUrl(moduleNumber), deadline.getQueryTimeoutMillis()));
     }
 
     // Append the numRecord with legacy DNS escape sequences replaced.
     numRecordBuffer.append(legacyEscapeReplacer.apply(numRecord));
 
     log.info("Interpret NUM record: {}", numRecordBuffer.toString());
-    return modlServices.interpretNumRecord(numRecordBuffer.toString(), timeoutMillis);
+    deadline.check();
+    return modlServices.interpretNumRecord(numRecordBuffer.toString(), deadline.getInterpreterTimeoutSeconds());
+  }
+
+  /**
+   * The URL of the RCF for a module.
+   *
+   * @param moduleNumber the module number
+   * @return the URL String
+   */
+  private String rcfUrl(final int moduleNumber) {
+    return modulesLocation + moduleNumber + "/rcf.txt";
   }
 
   /**
@@ -678,67 +1708,130 @@ public final class NumAPIImpl implements NumAPI {
    * @throws NumLookupRedirect     on error
    * @throws NumBadRecordException on error
    */
-  private String interpretNumRecord(final String numRecord, final NumAPIContextBase context, final int timeoutMillis) throws NumLookupRedirect, NumBadRecordException {
+  private String interpretNumRecord(final String numRecord, final NumAPIContextBase context, final Deadline deadline)
+      throws NumLookupRedirect, NumBadRecordException, NumLookupTimeoutException {
     log.info("interpretNumRecord({}, context)", numRecord);
     String json = null;
     if (numRecord != null && numRecord.trim().length() > 0) {
       // Build a MODL object using the required user variables, the RCF, and the NUM record from
       // DNS.
-      json = getInterpretedNumRecordAsJson(context.getModuleDNSQueries().getModuleId(), context, numRecord, timeoutMillis);
+      json = getInterpretedNumRecordAsJson(context.getModuleDNSQueries().getModuleId(), context, numRecord, deadline);
     }
     return json;
   }
 
   /**
-   * Get a NUM record for the given query string. Try multi-part queries if necessary.
+   * Get a NUM record for the current location of the context without blocking. Try multi-part queries if necessary.
+   *
+   * @param deadline      the Deadline for the lookup
+   * @param context       The context obtained from the NumAPI.begin() method
+   * @return a CompletableFuture for the raw NUM record from DNS, which is null if there is no record.
+   */
+  private CompletableFuture<String> getNumRecordAsync(final Deadline deadline, final NumAPIContextBase context) {
+    // The populator is polled while it works, so it must not be answered from the cache.
+    return getNumRecordAsync(deadline, context, context.getLocation() != POPULATOR);
+  }
+
+  /**
+   * Get a NUM record for the current location of the context without blocking. Try multi-part queries if necessary.
    *
-   * @param timeoutMillis The timeout
+   * @param deadline      the Deadline for the lookup
    * @param context       The context obtained from the NumAPI.begin() method
-   * @return The raw NUM record from DNS.
-   * @throws NumInvalidDNSQueryException   on error
-   * @throws NumNoRecordAvailableException if a CNAME or SPF record is received instead of a TXT record
-   * @throws RrSetIncompleteException      on error
-   * @throws RrSetHeaderFormatException    on error
-   * @throws RrSetNoHeadersException       on error
-   */
-  private String getNumRecord(int timeoutMillis, final NumAPIContextBase context)
-      throws NumInvalidDNSQueryException, NumNoRecordAvailableException, RrSetHeaderFormatException, RrSetIncompleteException, RrSetNoHeadersException {
+   * @param readCache     false if the record must come from DNS, e.g. because the populator has just created it.
+   * @return a CompletableFuture for the raw NUM record from DNS, which is null if there is no record.
+   */
+  private CompletableFuture<String> getNumRecordAsync(final Deadline deadline, final NumAPIContextBase context, final boolean readCache) {
     final String recordLocation = context.getRecordLocation();
     if (recordLocation == null) {
-      return null;
+      return CompletableFuture.completedFuture(null);
+    }
+    log.info("getNumRecordAsync({}, context, {})", deadline, recordLocation);
+    return fetchRecord(recordLocation, context, deadline, readCache, context.getLocation() != POPULATOR).thenApply(record -> useRecord(record, context));
+  }
+
+  /**
+   * Get a NUM record from the record cache, or from DNS if it isn't cached. Negative answers from DNS are always cached, subject to the negative TTL cap.
+   *
+   * @param recordLocation the DNS query String
+   * @param context        The context obtained from the NumAPI.begin() method
+   * @param deadline       the Deadline for the lookup
+   * @param readCache      false if the record must come from DNS
+   * @param cacheRecord    false if a record from DNS must not be cached
+   * @return a CompletableFuture for the CachedRecord, which is null if there is no record.
+   */
+  private CompletableFuture<CachedRecord> fetchRecord(final String recordLocation, final NumAPIContextBase context, final Deadline deadline, final boolean readCache,
+      final boolean cacheRecord) {
+    if (readCache && !context.isBypassCache()) {
+      final RecordCache.Entry cached = recordCache.getEntry(recordLocation);
+      if (cached != null) {
+        final CachedRecord record = cached.getRecord();
+        log.info("Using the cached {} for {}", record.isNegative() ? "negative answer" : "record", recordLocation);
+        context.limitResultExpiry(cached.getExpiresAtNanos());
+        return CompletableFuture.completedFuture(record.isNegative() ? null : record);
+      }
+    }
+    // DNS answers arrive on a resolver thread, which should only complete futures, so the answer is rebuilt and stored on the lookup executor.
+    return queryDns(recordLocation, context, deadline).thenApplyAsync(recordFromDns -> storeRecord(recordLocation, recordFromDns, context, cacheRecord), executor);
+  }
+
+  /**
+   * Cache a DNS response and record how it affects the lookup result.
+   *
+   * @param recordLocation the DNS query String
+   * @param recordFromDns  the DNS response
+   * @param context        The context obtained from the NumAPI.begin() method
+   * @param cacheRecord    false if a record from DNS must not be cached
+   * @return The CachedRecord, or null if there is no record.
+   */
+  private CachedRecord storeRecord(final String recordLocation, final TXTResponse recordFromDns, final NumAPIContextBase context, final boolean cacheRecord) {
+    final CachedRecord record = toCachedRecord(recordFromDns);
+    RecordCache.Entry entry = null;
+    if (record != null) {
+      if (cacheRecord) {
+        entry = recordCache.put(recordLocation, record);
+      }
+    } else if (recordFromDns.isFailure()) {
+      context.setDnsFailure(true);
+    } else if (recordFromDns.isNegative()) {
+      // Timeouts and failures have no negative TTL so they are never cached.
+      entry = recordCache.putNegative(recordLocation, recordFromDns.getNegativeTtlSeconds());
     }
-    log.info("getNumRecord({}, context, {})", timeoutMillis, recordLocation);
-    DNSServices.GetRecordResponse recordFromDns;
-    recordFromDns = dnsServices.getRecordFromDnsNoCache(recordLocation, timeoutMillis);
-    if (recordFromDns == null || recordFromDns.getRecords().length == 0) {
+    // A result that depends on an uncached answer can't be cached either.
+    context.limitResultExpiry((entry != null) ? entry.getExpiresAtNanos() : System.nanoTime());
+    return record;
+  }
+
+  /**
+   * Rebuild the NUM record from a DNS response.
+   *
+   * @param recordFromDns the DNS response
+   * @return The CachedRecord, or null if there is no record.
+   */
+  private CachedRecord toCachedRecord(final TXTResponse recordFromDns) {
+    if (recordFromDns.getRecords().length == 0) {
       return null;
     }
-    context.setDnsSecSigned(recordFromDns.isSigned());
-    return dnsServices.rebuildTXTRecordContent(recordFromDns.getRecords());
+    final long ttlSeconds = Arrays.stream(recordFromDns.getRecords()).mapToLong(Record::getTTL).min().orElse(0);
+    try {
+      return new CachedRecord(dnsServices.rebuildTXTRecordContent(recordFromDns.getRecords()), recordFromDns.isSigned(), ttlSeconds);
+    } catch (final Exception e) {
+      throw new CompletionException(e);
+    }
   }
 
   /**
-   * Get a NUM record for the given query string. Try multi-part queries if necessary. Don't cache the responses
+   * Record whether the NUM record was DNSSEC signed.
    *
-   * @param timeoutMillis  The timeout
-   * @param recordLocation The DNS query String.
-   * @return The raw NUM record from DNS.
-   * @throws NumInvalidDNSQueryException   on error
-   * @throws NumNoRecordAvailableException if a CNAME or SPF record is received instead of a TXT record
-   * @throws RrSetIncompleteException      on error
-   * @throws RrSetHeaderFormatException    on error
-   * @throws RrSetNoHeadersException       on error
+   * @param record  the CachedRecord, or null
+   * @param context The context obtained from the NumAPI.begin() method
+   * @return The raw NUM record, or null if there is no record.
    */
-  private String getNumRecordNoCache(int timeoutMillis, String recordLocation, final NumAPIContextBase context)
-      throws NumInvalidDNSQueryException, NumNoRecordAvailableException, RrSetHeaderFormatException, RrSetIncompleteException, RrSetNoHeadersException {
-    log.info("getNumRecordNoCache({}, context, {})", timeoutMillis, recordLocation);
-    DNSServices.GetRecordResponse recordFromDns;
-    recordFromDns = dnsServices.getRecordFromDnsNoCache(recordLocation, timeoutMillis);
-    if (recordFromDns == null || recordFromDns.getRecords().length == 0) {
+  private static String useRecord(final CachedRecord record, final NumAPIContextBase context) {
+    if (record == null) {
       return null;
     }
-    context.setDnsSecSigned(recordFromDns.isSigned());
-    return dnsServices.rebuildTXTRecordContent(recordFromDns.getRecords());
+    context.setDnsSecSigned(record.isSigned());
+    return record.getNumRecord();
   }
 
   /**
@@ -747,6 +1840,12 @@ public final class NumAPIImpl implements NumAPI {
   @Override
   public void shutdown() {
     log.info("shutdown()");
+    scheduler.shutdownNow();
+    setPersistentStore(null);
+    if (!ownsExecutor) {
+      log.info("The Executor was supplied by the caller so it has not been shut down.");
+      return;
+    }
     try {
       executor.shutdown();
       executor.awaitTermination(1, TimeUnit.SECONDS);
@@ -765,5 +1864,171 @@ public final class NumAPIImpl implements NumAPI {
     this.modulesLocation = modulesLocation;
   }
 
+  /**
+   * Set the directory that module RCF files are saved to, so that they don't have to be fetched again after a restart. The directory should be private to the user running
+   * the client, e.g. under user.home, since the saved files are trusted. It is created with owner-only permissions if necessary, and it is ignored if it belongs to another
+   * user or other users can write to it.
+   *
+   * @param directory the directory, or null to keep RCF files in memory only. The default is null.
+   */
+  public void setModuleCacheDirectory(final File directory) {
+    moduleRcfCache.setDirectory(directory);
+  }
+
+  /**
+   * Set how old a cached module RCF file can get before it is revalidated in the background. Lookups never wait for a revalidation.
+   *
+   * @param revalidateAfterSeconds the age in seconds, 0 to revalidate on every use. The default is 1 hour.
+   */
+  public void setModuleCacheRevalidation(final long revalidateAfterSeconds) {
+    moduleRcfCache.setRevalidateAfterMillis(TimeUnit.SECONDS.toMillis(revalidateAfterSeconds));
+  }
+
+  /**
+   * Query the HOSTED location alongside the INDEPENDENT location instead of waiting for the INDEPENDENT query to fail. The INDEPENDENT record still takes precedence. Does not
+   * apply to module 0, which has no HOSTED location.
+   *
+   * @param hedgeDelayMillis the delay before the HOSTED query is started, or -1 to query the locations one after the other (the default).
+   */
+  public void setHedgeDelayMillis(final int hedgeDelayMillis) {
+    this.hedgeDelayMillis = hedgeDelayMillis;
+  }
+
+  /**
+   * Identical lookups that run at the same time share one set of DNS queries and one MODL interpretation. Only the callbacks for the first of the identical lookups receive
+   * intermediate results from the populator. Lookups with an overall deadline, or that bypass the cache, always run separately.
+   *
+   * @param coalesceLookups false to run every lookup separately. The default is true.
+   */
+  public void setCoalesceLookups(final boolean coalesceLookups) {
+    this.coalesceLookups = coalesceLookups;
+  }
+
+  /**
+   * Set the bounds on how long NUM records are cached. Records are cached for their DNS TTL, clamped to these bounds.
+   *
+   * @param minTtlSeconds the shortest time to cache a record. The default is 0.
+   * @param maxTtlSeconds the longest time to cache a record, or 0 to disable the cache, whatever the minimum. The default is 1 hour.
+   */
+  public void setRecordCacheTtlBounds(final long minTtlSeconds, final long maxTtlSeconds) {
+    recordCache.setTtlBounds(minTtlSeconds, maxTtlSeconds);
+  }
+
+  /**
+   * Set the cap on how long to remember that a NUM location has no record. Negative answers are cached for the SOA minimum TTL of the zone, up to this cap. Only
+   * answers from DNS servers are cached, not timeouts or failures, and only when using a dnsjava Resolver rather than a DNSServices implementation.
+   *
+   * @param maxNegativeTtlSeconds the longest time to cache a negative answer, or 0 to disable negative caching. The default is 5 minutes.
+   */
+  public void setNegativeCacheMaxTtl(final long maxNegativeTtlSeconds) {
+    recordCache.setMaxNegativeTtl(maxNegativeTtlSeconds);
+  }
+
+  /**
+   * Refresh popular cached results in the background before they expire, so that callers don't have to wait for DNS every time a record's TTL runs out. A result is refreshed
+   * when it is read after the given fraction of its lifetime has passed. Callers get the cached result while the refresh is in progress.
+   *
+   * @param refreshAheadFraction a fraction between 0 and 1, or 0 to let cached results expire without refreshing them. The default is 0.8.
+   */
+  public void setRefreshAheadFraction(final double refreshAheadFraction) {
+    if (refreshAheadFraction < 0 || refreshAheadFraction >= 1) {
+      throw new IllegalArgumentException("refreshAheadFraction should be >= 0 and < 1 but is: " + refreshAheadFraction);
+    }
+    this.refreshAheadFraction = refreshAheadFraction;
+  }
+
+  /**
+   * Serve the last good result when DNS fails or a lookup runs out of time, as long as the result expired no more than the given time ago. Other failures, such as bad
+   * records or redirects, are always reported. Stale results are flagged with NumLookupResult.isStale() and NumAPIContext.isStale().
+   *
+   * @param maxStaleSeconds the maximum time since the result expired, or 0 to report failures instead (the default).
+   */
+  public void setMaxStaleness(final long maxStaleSeconds) {
+    resultCache.setMaxStaleness(maxStaleSeconds);
+  }
+
+  /**
+   * Save cached DNS records and lookup results to a memory-mapped file as well, so that a restarted client doesn't
+   * have to start with empty caches. Any unexpired entries already in the file are loaded into the caches first. The
+   * file is compacted in the background as entries expire.
+   *
+   * @param file the cache file, which is created if it doesn't exist and is locked so that only one client uses it. The
+   *             entries are kept in files named after it with a generation number appended, which are overwritten if
+   *             they aren't valid cache files. The files and their directory must belong to the current user and must not be writable by other users. New
+   *             files are only readable by the current user.
+   * @throws IOException if the files can't be opened or created, another user could change them, or another client is using them
+   */
+  public void setPersistentCache(@NonNull final File file) throws IOException {
+    final PersistentStore store = PersistentStore.open(file, scheduler);
+    store.load(recordCache, resultCache);
+    setPersistentStore(store);
+  }
+
+  /**
+   * Attach a new persistent store to the caches, closing the old one if there is one.
+   *
+   * @param store the PersistentStore, or null to stop saving to disk.
+   */
+  private synchronized void setPersistentStore(final PersistentStore store) {
+    recordCache.setPersistentStore(store);
+    resultCache.setPersistentStore(store);
+    if (persistentStore != null) {
+      persistentStore.close();
+    }
+    persistentStore = store;
+  }
+
+  /**
+   * Set how long to check the HOSTED location first for a domain whose records were last found there. The INDEPENDENT location is still checked if the HOSTED location has no
+   * record, and it is checked first again once the time is up, so records that move to the INDEPENDENT location are found within this time.
+   *
+   * @param hostedFirstSeconds the time in seconds, or 0 to always check the INDEPENDENT location first. The default is 0; 300 is a
+   *                           reasonable value for clients that look up many HOSTED domains.
+   */
+  public void setHostedFirstSeconds(final long hostedFirstSeconds) {
+    if (hostedFirstSeconds < 0) {
+      throw new IllegalArgumentException("hostedFirstSeconds should be >= 0 but is: " + hostedFirstSeconds);
+    }
+    this.hostedFirstSeconds = hostedFirstSeconds;
+    if (hostedFirstSeconds == 0) {
+      hostedDomains.clear();
+    }
+  }
+
+  /**
+   * Query the distributed INDEPENDENT locations of email NUM IDs for 1, 2 and 3 levels at the same time as the undistributed location, so that a Zone Distribution Record
+   * doesn't need another round trip. The answer for the levels in the Zone Distribution Record is used and every answer is cached. Each lookup can start up to three
+   * extra queries, so the budget limits how many are in progress across all lookups.
+   *
+   * @param zoneDistributionProbeBudget the maximum number of speculative queries in progress at the same time, or 0 to disable them (the default).
+   */
+  public void setZoneDistributionProbeBudget(final int zoneDistributionProbeBudget) {
+    if (zoneDistributionProbeBudget < 0) {
+      throw new IllegalArgumentException("zoneDistributionProbeBudget should be >= 0 but is: " + zoneDistributionProbeBudget);
+    }
+    this.zoneDistributionProbeBudget = zoneDistributionProbeBudget;
+  }
+
+  /**
+   * Set the maximum number of lookups from a single retrieveNumRecords() call that can be in progress at the same time.
+   *
+   * @param maxBatchLookups the maximum number of lookups, which must be at least 1. The default is 256.
+   */
+  public void setMaxBatchLookups(final int maxBatchLookups) {
+    if (maxBatchLookups < 1) {
+      throw new IllegalArgumentException("maxBatchLookups should be >= 1 but is: " + maxBatchLookups);
+    }
+    this.maxBatchLookups = maxBatchLookups;
+  }
+
+  /**
+   * Get the current queue depth, active thread count and queue wait times for the lookup Executor.
+   *
+   * @return a NumExecutorStatistics snapshot
+   */
+  public NumExecutorStatistics getExecutorStatistics() {
+    return LookupExecutor.statisticsFor(executor);
+  }
+
 }
 
@@ -0,0 +1,54 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.api;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A snapshot of the state of the Executor used to run NUM lookups. Values that the Executor cannot report are -1.
+ */
+@AllArgsConstructor
+@Getter
+@ToString
+public final class NumExecutorStatistics {
+    /**
+     * The number of lookups waiting for a thread.
+     */
+    private final int queueDepth;
+    /**
+     * The number of threads currently running lookups.
+     */
+    private final int activeThreads;
+    /**
+     * The number of threads in the pool.
+     */
+    private final int poolSize;
+    /**
+     * The number of lookups that have finished.
+     */
+    private final long completedTasks;
+    /**
+     * The average time in milliseconds that lookups have waited for a thread.
+     */
+    private final long averageWaitMillis;
+    /**
+     * The longest time in milliseconds that any lookup has waited for a thread.
+     */
+    private final long maxWaitMillis;
+}
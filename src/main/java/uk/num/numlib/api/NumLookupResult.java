@@ -0,0 +1,46 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.api;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * The result of an asynchronous NUM record lookup.
+ */
+@AllArgsConstructor
+@Getter
+@ToString
+public final class NumLookupResult {
+    /**
+     * The JSON result, or the MODL record if the lookup was not interpreted.
+     */
+    private final String json;
+    /**
+     * The location the record was retrieved from.
+     */
+    private final NumAPICallbacks.Location location;
+    /**
+     * true if the record was DNSSEC signed.
+     */
+    private final boolean dnsSecSigned;
+    /**
+     * true if the lookup failed and this is the last good result from the cache instead.
+     */
+    private final boolean stale;
+}
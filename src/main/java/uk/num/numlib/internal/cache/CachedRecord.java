@@ -0,0 +1,59 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.cache;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A NUM record rebuilt from a TXT RRset, with the details needed to cache it.
+ */
+@AllArgsConstructor
+@Getter
+@ToString
+public final class CachedRecord {
+    /**
+     * The rebuilt TXT record content, or null if DNS said there is no record.
+     */
+    private final String numRecord;
+    /**
+     * true if the RRset was DNSSEC signed.
+     */
+    private final boolean signed;
+    /**
+     * The lowest TTL in the RRset, in seconds.
+     */
+    private final long ttlSeconds;
+
+    /**
+     * A cached answer that there is no record at a location.
+     *
+     * @param ttlSeconds the negative caching TTL
+     * @return a CachedRecord with no NUM record
+     */
+    public static CachedRecord negative(final long ttlSeconds) {
+        return new CachedRecord(null, false, ttlSeconds);
+    }
+
+    /**
+     * @return true if this is a cached answer that there is no record.
+     */
+    public boolean isNegative() {
+        return numRecord == null;
+    }
+}
@@ -0,0 +1,841 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.cache;
+
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+import uk.num.numlib.api.NumAPICallbacks;
+import uk.num.numlib.api.NumLookupResult;
+import uk.num.numlib.internal.util.DaemonThreadFactory;
+import uk.num.numlib.internal.util.PrivateFiles;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A second cache tier in a memory-mapped file, so that the record and result caches survive a restart.
+ * <p>
+ * Entries are appended to the file as they are cached, and the file is read back into the in-heap caches when it is
+ * opened. Later entries for the same key replace earlier ones. Compaction rewrites the file with only the latest
+ * unexpired entry for each key. It runs in the background, periodically and when the file is getting full, and only
+ * holds up appends while it copies the entries that were appended during the rewrite. Entries that are cached while the
+ * file is full are only kept in memory. Expiry times are stored as wall clock times since System.nanoTime() doesn't
+ * survive a restart.
+ * <p>
+ * The given file is locked while the store is open so that only one store uses it. The entries are in a data file
+ * named after it with a generation number appended, e.g. cache.dat.3, and each compaction writes the next generation.
+ * A file can't be replaced or deleted while it is memory-mapped on some platforms, so an old generation that can't be
+ * deleted straight away is deleted the next time the store is opened. The files and their directory must belong to
+ * the current user and must not be writable by other users, and new files are only readable by the current user.
+ * <p>
+ * The data file starts with a magic number and version, followed by the entries. Each entry is an int length, a CRC-32
+ * of the payload and then the payload: the entry kind, the expiry time, the time until which it should be kept, the
+ * key and the value. Writes to a mapped file can reach the disk in any order, so after a crash an entry might only be
+ * partly written. A length of 0 marks the end of the data, and an entry whose checksum doesn't match is skipped.
+ */
+@Log4j2
+public final class PersistentStore implements Closeable {
+
+    private static final int MAGIC = 0x4E554D43;
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * The size of the length and checksum before every payload.
+     */
+    private static final int ENTRY_HEADER_SIZE = 8;
+
+    private static final int INITIAL_CAPACITY = 16 * 1024 * 1024;
+
+    /**
+     * The size of the kind, the two times and the key length at the start of every payload.
+     */
+    private static final int PAYLOAD_HEADER_SIZE = 21;
+
+    private static final byte RECORD = 1;
+
+    private static final byte RESULT = 2;
+
+    private static final long COMPACTION_PERIOD_MINUTES = 10;
+
+    private final File file;
+
+    /**
+     * Runs compactions, so that they don't hold up the threads that store entries or the shared scheduler.
+     */
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("num-cache-compaction"));
+
+    private final FileChannel lockChannel;
+
+    private final FileLock lock;
+
+    private final ScheduledFuture<?> compactionTask;
+
+    /**
+     * The generation number of the current data file.
+     */
+    private long generation;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    /**
+     * Where the next entry will be written.
+     */
+    private int position;
+
+    /**
+     * The end of the data after the last compaction, used to decide whether another compaction is worthwhile.
+     */
+    private int compactedPosition;
+
+    /**
+     * true while a compaction is scheduled or running, so that only one runs at a time.
+     */
+    private boolean compacting;
+
+    private boolean closed;
+
+    private PersistentStore(final File file, final ScheduledExecutorService scheduler) throws IOException {
+        this.file = file;
+        PrivateFiles.checkOwner(file.getAbsoluteFile()
+                .getParentFile()
+                .toPath());
+        PrivateFiles.createFile(file);
+        lockChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock fileLock;
+        try {
+            fileLock = lockChannel.tryLock();
+        } catch (final OverlappingFileLockException e) {
+            // Another store in this JVM has the file open.
+            fileLock = null;
+        }
+        lock = fileLock;
+        if (lock == null) {
+            lockChannel.close();
+            compactor.shutdown();
+            throw new IOException(file + " is already in use.");
+        }
+        try {
+            openLatestGeneration();
+        } catch (final IOException e) {
+            lockChannel.close();
+            compactor.shutdown();
+            throw e;
+        }
+        compactedPosition = position;
+        compactionTask = scheduler.scheduleWithFixedDelay(this::compactIfWasteful, COMPACTION_PERIOD_MINUTES, COMPACTION_PERIOD_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Open or create a store.
+     *
+     * @param file      the file to lock, which the data file names are based on
+     * @param scheduler used to check periodically whether the file needs compacting
+     * @return a PersistentStore
+     * @throws IOException if the files can't be opened or created, another user could change them, or another store is
+     *                     using them
+     */
+    public static PersistentStore open(@NonNull final File file, @NonNull final ScheduledExecutorService scheduler) throws IOException {
+        return new PersistentStore(file, scheduler);
+    }
+
+    /**
+     * Copy the unexpired entries into the in-heap caches. Restored entries are not written back to the store.
+     *
+     * @param recordCache the RecordCache
+     * @param resultCache the ResultCache
+     */
+    public synchronized void load(final RecordCache recordCache, final ResultCache resultCache) {
+        final long now = System.currentTimeMillis();
+        int records = 0;
+        int results = 0;
+        for (final byte[] payload : readPayloads(HEADER_SIZE, position)) {
+            try (final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+                final byte kind = in.readByte();
+                final long expiresAtMillis = in.readLong();
+                final long retainUntilMillis = in.readLong();
+                final byte[] key = new byte[readLength(in)];
+                in.readFully(key);
+                if (retainUntilMillis <= now) {
+                    continue;
+                }
+                final long expiresAtNanos = toNanoTime(expiresAtMillis);
+                if (kind == RECORD) {
+                    recordCache.restore(new String(key, StandardCharsets.UTF_8), readRecord(in), expiresAtNanos);
+                    records++;
+                } else if (kind == RESULT) {
+                    resultCache.restore(readKey(key), readResult(in), expiresAtNanos);
+                    results++;
+                }
+            } catch (final IOException | RuntimeException e) {
+                log.warn("Skipping an unreadable entry in {}: {}", file, e.getMessage());
+            }
+        }
+        log.info("Loaded {} records and {} results from {}", records, results, file);
+    }
+
+    /**
+     * Append a record from the RecordCache.
+     *
+     * @param query          the normalised DNS query name
+     * @param record         the CachedRecord
+     * @param expiresAtNanos the System.nanoTime() at which the record expires
+     */
+    public void appendRecord(final String query, final CachedRecord record, final long expiresAtNanos) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            final long expiresAtMillis = toEpochMillis(expiresAtNanos);
+            writeHeader(out, RECORD, expiresAtMillis, expiresAtMillis, query.getBytes(StandardCharsets.UTF_8));
+            out.writeBoolean(record.isNegative());
+            out.writeBoolean(record.isSigned());
+            out.writeLong(record.getTtlSeconds());
+            if (!record.isNegative()) {
+                writeString(out, record.getNumRecord());
+            }
+            append(bytes.toByteArray());
+        } catch (final IOException e) {
+            log.error("Unable to store a record in {}", file, e);
+        }
+    }
+
+    /**
+     * Append a result from the ResultCache.
+     *
+     * @param key              the lookup key
+     * @param result           the NumLookupResult
+     * @param expiresAtNanos   the System.nanoTime() at which the result expires
+     * @param retainUntilNanos the System.nanoTime() until which the result can be served stale
+     */
+    public void appendResult(final List<Object> key, final NumLookupResult result, final long expiresAtNanos, final long retainUntilNanos) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            writeHeader(out, RESULT, toEpochMillis(expiresAtNanos), toEpochMillis(retainUntilNanos), writeKey(key));
+            writeString(out, result.getJson());
+            writeString(out, (result.getLocation() == null) ? "" : result.getLocation()
+                    .name());
+            out.writeBoolean(result.isDnsSecSigned());
+            append(bytes.toByteArray());
+        } catch (final IOException | IllegalArgumentException e) {
+            log.error("Unable to store a result in {}", file, e);
+        }
+    }
+
+    /**
+     * Rewrite the file with only the latest unexpired entry for each key. Nothing happens if a compaction is already
+     * in progress.
+     */
+    public void compact() {
+        synchronized (this) {
+            if (closed || compacting) {
+                return;
+            }
+            compacting = true;
+        }
+        runCompaction();
+    }
+
+    /**
+     * Write any changes to disk and stop using the file.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        buffer.force();
+        closeQuietly();
+    }
+
+    private synchronized void append(final byte[] payload) {
+        if (closed) {
+            return;
+        }
+        if ((long) position + ENTRY_HEADER_SIZE + payload.length > buffer.capacity()) {
+            // Compaction isn't run on the caller's thread, so this entry is only kept in memory.
+            log.debug("{} is full, an entry was not stored.", file);
+            scheduleCompaction();
+            return;
+        }
+        buffer.position(position + ENTRY_HEADER_SIZE);
+        buffer.put(payload);
+        buffer.putInt(position + 4, checksum(payload));
+        buffer.putInt(position, payload.length);
+        position += ENTRY_HEADER_SIZE + payload.length;
+        if (position > buffer.capacity() / 4 * 3) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Start a compaction in the background unless one is already in progress.
+     */
+    private void scheduleCompaction() {
+        if (compacting) {
+            return;
+        }
+        compacting = true;
+        try {
+            compactor.execute(this::runCompaction);
+        } catch (final RejectedExecutionException e) {
+            compacting = false;
+            log.warn("Unable to start compacting {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Compact the file if it has more than doubled in size since it was last compacted.
+     */
+    private synchronized void compactIfWasteful() {
+        if (!closed && position - HEADER_SIZE > 2 * (compactedPosition - HEADER_SIZE)) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Write the latest unexpired entry for each key to the next generation of the data file, then switch to it. The
+     * store is only locked while the entries are read and while the entries appended in the meantime are copied, so
+     * appends carry on while the new file is written. The caller must have set compacting.
+     */
+    private void runCompaction() {
+        File target = null;
+        try {
+            final List<byte[]> payloads;
+            final int end;
+            final long targetGeneration;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                payloads = readPayloads(HEADER_SIZE, position);
+                end = position;
+                targetGeneration = generation + 1;
+            }
+
+            final long now = System.currentTimeMillis();
+            final Map<String, byte[]> live = new LinkedHashMap<>();
+            long liveBytes = 0;
+            for (final byte[] payload : payloads) {
+                final String key;
+                try {
+                    key = entryKey(payload);
+                } catch (final IOException e) {
+                    log.warn("Dropping an unreadable entry from {}: {}", file, e.getMessage());
+                    continue;
+                }
+                final byte[] previous = live.remove(key);
+                if (previous != null) {
+                    liveBytes -= ENTRY_HEADER_SIZE + previous.length;
+                }
+                if (retainUntilMillis(payload) > now) {
+                    live.put(key, payload);
+                    liveBytes += ENTRY_HEADER_SIZE + payload.length;
+                }
+            }
+            // Leave at least as much room as the live entries take, for the entries that are appended later.
+            final long capacity = Math.max(INITIAL_CAPACITY, (HEADER_SIZE + liveBytes) * 2);
+            if (capacity > Integer.MAX_VALUE) {
+                throw new IOException("The persistent cache is too large: " + (HEADER_SIZE + liveBytes));
+            }
+
+            target = generationFile(targetGeneration);
+            PrivateFiles.createFile(target);
+            final RandomAccessFile raf = new RandomAccessFile(target, "rw");
+            final FileChannel targetChannel = raf.getChannel();
+            final MappedByteBuffer targetBuffer;
+            try {
+                raf.setLength(0);
+                raf.setLength(capacity);
+                targetBuffer = targetChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                targetBuffer.position(HEADER_SIZE);
+                for (final byte[] payload : live.values()) {
+                    putEntry(targetBuffer, payload);
+                }
+                targetBuffer.force();
+            } catch (final IOException | RuntimeException e) {
+                targetChannel.close();
+                throw e;
+            }
+
+            synchronized (this) {
+                if (closed) {
+                    targetChannel.close();
+                    deleteQuietly(target);
+                    return;
+                }
+                // Copy the entries that were appended while the new file was being written.
+                int appended = 0;
+                for (final byte[] payload : readPayloads(end, position)) {
+                    if ((long) targetBuffer.position() + ENTRY_HEADER_SIZE + payload.length > capacity) {
+                        log.debug("{} is full, an entry was not stored.", file);
+                        break;
+                    }
+                    putEntry(targetBuffer, payload);
+                    appended++;
+                }
+                // The header goes last, once the store can no longer be closed without it, so that a generation is
+                // never used unless it has every entry.
+                targetBuffer.putInt(0, MAGIC);
+                targetBuffer.putInt(4, VERSION);
+                targetBuffer.force();
+                final File previous = generationFile(generation);
+                channel.close();
+                channel = targetChannel;
+                buffer = targetBuffer;
+                generation = targetGeneration;
+                position = targetBuffer.position();
+                compactedPosition = position;
+                // This fails while the old file is still mapped on some platforms, in which case the next open()
+                // deletes it.
+                deleteQuietly(previous);
+                log.info("Compacted {} to {} entries.", file, live.size() + appended);
+            }
+        } catch (final IOException | RuntimeException e) {
+            log.error("Unable to compact {}, it will no longer be used.", file, e);
+            if (target != null) {
+                deleteQuietly(target);
+            }
+            synchronized (this) {
+                closeQuietly();
+            }
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Map the newest valid generation of the data file, or start a new one if there isn't one, and delete the others.
+     *
+     * @throws IOException on error
+     */
+    private void openLatestGeneration() throws IOException {
+        final File directory = file.getAbsoluteFile()
+                .getParentFile();
+        final String prefix = file.getName() + ".";
+        final TreeMap<Long, File> generations = new TreeMap<>();
+        final File[] files = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.length() > prefix.length() && name.substring(prefix.length())
+                .chars()
+                .allMatch(Character::isDigit));
+        if (files != null) {
+            for (final File candidate : files) {
+                try {
+                    generations.put(Long.parseLong(candidate.getName()
+                            .substring(prefix.length())), candidate);
+                } catch (final NumberFormatException e) {
+                    // Not one of ours.
+                }
+            }
+        }
+        generation = generations.isEmpty() ? 1 : generations.lastKey();
+        for (final Map.Entry<Long, File> candidate : generations.descendingMap()
+                .entrySet()) {
+            if (isValid(candidate.getValue())) {
+                generation = candidate.getKey();
+                break;
+            }
+        }
+        map(generationFile(generation));
+        for (final Map.Entry<Long, File> candidate : generations.entrySet()) {
+            if (candidate.getKey() != generation) {
+                deleteQuietly(candidate.getValue());
+            }
+        }
+    }
+
+    /**
+     * Check whether a data file starts with the magic number and the current version.
+     *
+     * @param source the data file
+     * @return true if it can be used
+     */
+    private static boolean isValid(final File source) {
+        try (final RandomAccessFile raf = new RandomAccessFile(source, "r")) {
+            return raf.length() >= HEADER_SIZE && raf.length() <= Integer.MAX_VALUE && raf.readInt() == MAGIC && raf.readInt() == VERSION;
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Map the data file, creating or resetting it if it isn't a valid store, and find the end of the data.
+     *
+     * @param source the data file
+     * @throws IOException on error
+     */
+    private void map(final File source) throws IOException {
+        PrivateFiles.createFile(source);
+        final RandomAccessFile raf = new RandomAccessFile(source, "rw");
+        channel = raf.getChannel();
+        try {
+            final long length = raf.length();
+            final boolean valid = length >= HEADER_SIZE && length <= Integer.MAX_VALUE && raf.readInt() == MAGIC && raf.readInt() == VERSION;
+            if (!valid) {
+                if (length > 0) {
+                    log.warn("{} is not a compatible cache file, starting a new one.", source);
+                }
+                raf.setLength(0);
+            }
+            if (raf.length() < INITIAL_CAPACITY) {
+                // Extend the file before mapping it, since a mapped file can't be resized on some platforms.
+                raf.setLength(INITIAL_CAPACITY);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            if (!valid) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+            }
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+        position = HEADER_SIZE;
+        while (position + ENTRY_HEADER_SIZE <= buffer.capacity()) {
+            final int length = buffer.getInt(position);
+            if (length < PAYLOAD_HEADER_SIZE || (long) position + ENTRY_HEADER_SIZE + length > buffer.capacity()) {
+                break;
+            }
+            position += ENTRY_HEADER_SIZE + length;
+        }
+    }
+
+    /**
+     * Read the entries between two positions in the file, oldest first, skipping any that were only partly written.
+     *
+     * @param start the position of the first entry
+     * @param end   the position after the last entry
+     * @return the entry payloads
+     */
+    private List<byte[]> readPayloads(final int start, final int end) {
+        final List<byte[]> payloads = new ArrayList<>();
+        if (closed) {
+            return payloads;
+        }
+        int offset = start;
+        while (offset < end) {
+            final int length = buffer.getInt(offset);
+            if (length < PAYLOAD_HEADER_SIZE || (long) offset + ENTRY_HEADER_SIZE + length > end) {
+                log.warn("{} has an invalid entry length: {}", file, length);
+                break;
+            }
+            final byte[] payload = new byte[length];
+            buffer.position(offset + ENTRY_HEADER_SIZE);
+            buffer.get(payload);
+            if (buffer.getInt(offset + 4) == checksum(payload)) {
+                payloads.add(payload);
+            } else {
+                log.warn("Skipping an entry with the wrong checksum in {}", file);
+            }
+            offset += ENTRY_HEADER_SIZE + length;
+        }
+        return payloads;
+    }
+
+    /**
+     * Write an entry at the current position of a buffer.
+     *
+     * @param target  the buffer
+     * @param payload the entry payload
+     */
+    private static void putEntry(final MappedByteBuffer target, final byte[] payload) {
+        target.putInt(payload.length);
+        target.putInt(checksum(payload));
+        target.put(payload);
+    }
+
+    /**
+     * @param payload an entry payload
+     * @return the CRC-32 of the payload
+     */
+    private static int checksum(final byte[] payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * The data file for a generation.
+     *
+     * @param number the generation number
+     * @return the File
+     */
+    private File generationFile(final long number) {
+        return new File(file.getPath() + "." + number);
+    }
+
+    /**
+     * Delete a file, logging rather than failing if it can't be deleted.
+     *
+     * @param target the File
+     */
+    private static void deleteQuietly(final File target) {
+        if (target.exists() && !target.delete()) {
+            log.debug("Unable to delete {}, it will be deleted later.", target);
+        }
+    }
+
+    /**
+     * Stop using the file after an error.
+     */
+    private void closeQuietly() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        compactionTask.cancel(false);
+        compactor.shutdown();
+        try {
+            channel.close();
+            lock.release();
+            lockChannel.close();
+        } catch (final IOException e) {
+            log.warn("Unable to close {}", file, e);
+        }
+    }
+
+    /**
+     * The kind and key of an entry, which identifies the entries that replace each other.
+     *
+     * @param payload the entry
+     * @return a String that can be used as a Map key
+     * @throws IOException if the key length is invalid
+     */
+    private static String entryKey(final byte[] payload) throws IOException {
+        final int keyLength = ((payload[17] & 0xFF) << 24) | ((payload[18] & 0xFF) << 16) | ((payload[19] & 0xFF) << 8) | (payload[20] & 0xFF);
+        if (keyLength < 0 || keyLength > payload.length - PAYLOAD_HEADER_SIZE) {
+            throw new IOException("Invalid key length: " + keyLength);
+        }
+        return new String(payload, 0, 1, StandardCharsets.ISO_8859_1) + new String(payload, 21, keyLength, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The time until which an entry should be kept.
+     *
+     * @param payload the entry
+     * @return the time in epoch milliseconds
+     */
+    private static long retainUntilMillis(final byte[] payload) {
+        long value = 0;
+        for (int i = 9; i < 17; i++) {
+            value = (value << 8) | (payload[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Write the fields that every entry starts with.
+     *
+     * @param out               the DataOutputStream
+     * @param kind              RECORD or RESULT
+     * @param expiresAtMillis   the time the entry expires, in epoch milliseconds
+     * @param retainUntilMillis the time until which the entry should be kept, in epoch milliseconds
+     * @param key               the serialised key
+     * @throws IOException on error
+     */
+    private static void writeHeader(final DataOutputStream out, final byte kind, final long expiresAtMillis, final long retainUntilMillis, final byte[] key) throws IOException {
+        out.writeByte(kind);
+        out.writeLong(expiresAtMillis);
+        out.writeLong(retainUntilMillis);
+        out.writeInt(key.length);
+        out.write(key);
+    }
+
+    /**
+     * Read the value of a RECORD entry.
+     *
+     * @param in the DataInputStream, positioned after the key
+     * @return the CachedRecord
+     * @throws IOException if the entry is corrupt
+     */
+    private static CachedRecord readRecord(final DataInputStream in) throws IOException {
+        final boolean negative = in.readBoolean();
+        final boolean signed = in.readBoolean();
+        final long ttlSeconds = in.readLong();
+        return negative ? CachedRecord.negative(ttlSeconds) : new CachedRecord(readString(in), signed, ttlSeconds);
+    }
+
+    /**
+     * Read the value of a RESULT entry.
+     *
+     * @param in the DataInputStream, positioned after the key
+     * @return the NumLookupResult
+     * @throws IOException if the entry is corrupt
+     */
+    private static NumLookupResult readResult(final DataInputStream in) throws IOException {
+        final String json = readString(in);
+        final String location = readString(in);
+        final boolean signed = in.readBoolean();
+        return new NumLookupResult(json, location.isEmpty() ? null : NumAPICallbacks.Location.valueOf(location), signed, false);
+    }
+
+    /**
+     * Serialise a result cache key, which contains Integers, Booleans, Strings and nulls.
+     *
+     * @param key the lookup key
+     * @return the serialised key
+     * @throws IOException on error
+     */
+    private static byte[] writeKey(final List<Object> key) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(key.size());
+        for (final Object element : key) {
+            if (element == null) {
+                out.writeByte('N');
+            } else if (element instanceof Integer) {
+                out.writeByte('I');
+                out.writeInt((Integer) element);
+            } else if (element instanceof Boolean) {
+                out.writeByte('B');
+                out.writeBoolean((Boolean) element);
+            } else if (element instanceof String) {
+                out.writeByte('S');
+                writeString(out, (String) element);
+            } else {
+                throw new IllegalArgumentException("Unsupported key element: " + element.getClass());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserialise a lookup key.
+     *
+     * @param key the serialised key
+     * @return the lookup key
+     * @throws IOException if the key is corrupt
+     */
+    private static List<Object> readKey(final byte[] key) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(key));
+        // Every element is at least one byte.
+        final int size = readLength(in);
+        final List<Object> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            final byte tag = in.readByte();
+            switch (tag) {
+                case 'N':
+                    result.add(null);
+                    break;
+                case 'I':
+                    result.add(in.readInt());
+                    break;
+                case 'B':
+                    result.add(in.readBoolean());
+                    break;
+                case 'S':
+                    result.add(readString(in));
+                    break;
+                default:
+                    throw new IOException("Unknown key element tag: " + tag);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write a length-prefixed UTF-8 String. DataOutputStream.writeUTF() is limited to 64KB, which is too small for some
+     * records.
+     *
+     * @param out   the DataOutputStream
+     * @param value the String
+     * @throws IOException on error
+     */
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a String written by writeString().
+     *
+     * @param in the DataInputStream
+     * @return the String
+     * @throws IOException on error
+     */
+    private static String readString(final DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a length and check it against the bytes that are left, so that a corrupt entry can't cause a huge
+     * allocation.
+     *
+     * @param in a DataInputStream reading from a byte array, so that available() is the number of bytes left
+     * @return the length
+     * @throws IOException if the length is negative or longer than the rest of the entry
+     */
+    private static int readLength(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Convert a System.nanoTime() value to wall clock time, which is meaningful after a restart.
+     *
+     * @param nanoTime the System.nanoTime() value
+     * @return the time in epoch milliseconds
+     */
+    private static long toEpochMillis(final long nanoTime) {
+        return System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(nanoTime - System.nanoTime());
+    }
+
+    /**
+     * Convert wall clock time back to a System.nanoTime() value for this JVM.
+     *
+     * @param epochMillis the time in epoch milliseconds
+     * @return the System.nanoTime() value
+     */
+    private static long toNanoTime(final long epochMillis) {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(epochMillis - System.currentTimeMillis());
+    }
+}
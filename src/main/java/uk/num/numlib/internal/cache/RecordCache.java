@@ -0,0 +1,213 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.cache;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.lang3.StringUtils;
+
+import uk.num.numlib.internal.util.BoundedCache;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of NUM records keyed by DNS query name. Entries expire according to the TTL of the RRset, clamped to
+ * configurable bounds. Negative answers are kept for their RFC 2308 negative caching TTL, up to a configurable
+ * maximum. The number of query names is bounded, and the least popular are evicted first.
+ */
+@Log4j2
+public final class RecordCache {
+
+    /**
+     * The maximum number of query names to cache.
+     */
+    private static final int MAXIMUM_SIZE = 100_000;
+
+    private final BoundedCache<String, Entry> records = new BoundedCache<String, Entry>(MAXIMUM_SIZE, 0, TimeUnit.SECONDS).expireInBackground(1, TimeUnit.MINUTES);
+
+    private volatile long minTtlSeconds;
+
+    private volatile long maxTtlSeconds;
+
+    private volatile long maxNegativeTtlSeconds;
+
+    /**
+     * The optional second tier that new records are also written to.
+     */
+    private volatile PersistentStore persistentStore;
+
+    /**
+     * Constructor
+     *
+     * @param minTtlSeconds the shortest time to keep a record, even if its TTL is lower.
+     * @param maxTtlSeconds         the longest time to keep a record, even if its TTL is higher. 0 disables the cache.
+     * @param maxNegativeTtlSeconds the longest time to remember that there is no record. 0 disables negative caching.
+     */
+    public RecordCache(final long minTtlSeconds, final long maxTtlSeconds, final long maxNegativeTtlSeconds) {
+        setTtlBounds(minTtlSeconds, maxTtlSeconds);
+        setMaxNegativeTtl(maxNegativeTtlSeconds);
+    }
+
+    /**
+     * Change the TTL bounds for records cached from now on.
+     *
+     * @param minTtlSeconds the shortest time to keep a record, even if its TTL is lower.
+     * @param maxTtlSeconds the longest time to keep a record, even if its TTL is higher. 0 disables the cache, whatever
+     *                      the minimum.
+     */
+    public void setTtlBounds(final long minTtlSeconds, final long maxTtlSeconds) {
+        // A maximum of 0 turns the cache off, so any minimum goes with it.
+        if (minTtlSeconds < 0 || maxTtlSeconds < 0 || (maxTtlSeconds > 0 && maxTtlSeconds < minTtlSeconds)) {
+            throw new IllegalArgumentException("Invalid TTL bounds: " + minTtlSeconds + ", " + maxTtlSeconds);
+        }
+        this.minTtlSeconds = minTtlSeconds;
+        this.maxTtlSeconds = maxTtlSeconds;
+    }
+
+    /**
+     * Change the cap on the negative caching TTL for answers cached from now on.
+     *
+     * @param maxNegativeTtlSeconds the longest time to remember that there is no record. 0 disables negative caching.
+     */
+    public void setMaxNegativeTtl(final long maxNegativeTtlSeconds) {
+        if (maxNegativeTtlSeconds < 0) {
+            throw new IllegalArgumentException("Invalid negative TTL: " + maxNegativeTtlSeconds);
+        }
+        this.maxNegativeTtlSeconds = maxNegativeTtlSeconds;
+    }
+
+    /**
+     * Get a cached record.
+     *
+     * @param query the DNS query name
+     * @return the CachedRecord, which may be negative, or null if there is nothing cached.
+     */
+    public CachedRecord get(final String query) {
+        final Entry entry = getEntry(query);
+        return (entry == null) ? null : entry.record;
+    }
+
+    /**
+     * Get a cached record with its expiry time.
+     *
+     * @param query the DNS query name
+     * @return the Entry, or null if there is nothing cached.
+     */
+    public Entry getEntry(final String query) {
+        final String key = normalise(query);
+        final Entry entry = records.get(key);
+        if (entry != null) {
+            log.trace("Record cache hit: {}", key);
+        }
+        return entry;
+    }
+
+    /**
+     * Cache a record for its TTL, clamped to the TTL bounds.
+     *
+     * @param query  the DNS query name
+     * @param record the CachedRecord
+     * @return the new Entry, or null if the record was not cached.
+     */
+    public Entry put(final String query, final CachedRecord record) {
+        final long ttlSeconds = Math.min(maxTtlSeconds, Math.max(minTtlSeconds, record.getTtlSeconds()));
+        return store(query, record, ttlSeconds);
+    }
+
+    /**
+     * Remember that there is no record for the negative caching TTL, capped at the maximum negative TTL.
+     *
+     * @param query      the DNS query name
+     * @param ttlSeconds the negative caching TTL from the SOA record
+     * @return the new Entry, or null if the answer was not cached.
+     */
+    public Entry putNegative(final String query, final long ttlSeconds) {
+        final long cappedTtlSeconds = Math.min(maxNegativeTtlSeconds, ttlSeconds);
+        return store(query, CachedRecord.negative(cappedTtlSeconds), cappedTtlSeconds);
+    }
+
+    private Entry store(final String query, final CachedRecord record, final long ttlSeconds) {
+        if (ttlSeconds <= 0) {
+            return null;
+        }
+        final String key = normalise(query);
+        final Entry entry = new Entry(record, System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds));
+        records.put(key, entry, ttlSeconds, TimeUnit.SECONDS);
+        final PersistentStore store = persistentStore;
+        if (store != null) {
+            store.appendRecord(key, record, entry.expiresAtNanos);
+        }
+        return entry;
+    }
+
+    /**
+     * Put back a record that was cached before a restart, without writing it to the persistent store again.
+     *
+     * @param query          the DNS query name
+     * @param record         the CachedRecord
+     * @param expiresAtNanos the System.nanoTime() at which the record expires
+     */
+    public void restore(final String query, final CachedRecord record, final long expiresAtNanos) {
+        final long ttlNanos = expiresAtNanos - System.nanoTime();
+        if (ttlNanos > 0) {
+            records.put(normalise(query), new Entry(record, expiresAtNanos), ttlNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Write new records to a persistent store as well.
+     *
+     * @param persistentStore the PersistentStore, or null to stop writing to it.
+     */
+    public void setPersistentStore(final PersistentStore persistentStore) {
+        this.persistentStore = persistentStore;
+    }
+
+    /**
+     * Remove every record.
+     */
+    public void clear() {
+        records.clear();
+    }
+
+    /**
+     * DNS names are case-insensitive and may or may not have the trailing dot.
+     *
+     * @param query the DNS query name
+     * @return the cache key
+     */
+    private static String normalise(final String query) {
+        return StringUtils.removeEnd(query, ".")
+                .toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * A cached record and the System.nanoTime() at which it expires.
+     */
+    @Getter
+    public static final class Entry {
+        private final CachedRecord record;
+
+        private final long expiresAtNanos;
+
+        private Entry(final CachedRecord record, final long expiresAtNanos) {
+            this.record = record;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+}
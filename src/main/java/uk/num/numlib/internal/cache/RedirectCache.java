@@ -0,0 +1,100 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.cache;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import uk.num.numlib.internal.module.ModuleDNSQueries;
+import uk.num.numlib.internal.util.BoundedCache;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers where redirect chains end, so that later lookups for the same module, NUM ID and locations can go straight
+ * to the final location without querying and interpreting the redirecting records again. Each entry expires with the
+ * earliest expiry of the DNS answers that led to the redirects.
+ */
+public final class RedirectCache {
+
+    /**
+     * The maximum number of redirect chains to remember.
+     */
+    private static final int MAXIMUM_SIZE = 10_000;
+
+    private final BoundedCache<List<Object>, Entry> redirects = new BoundedCache<List<Object>, Entry>(MAXIMUM_SIZE, 0, TimeUnit.SECONDS).expireInBackground(1,
+            TimeUnit.MINUTES);
+
+    /**
+     * Build the key for the queries that a lookup starts with.
+     *
+     * @param queries the ModuleDNSQueries before any redirects
+     * @return a List that can be used as a Map key.
+     */
+    public static List<Object> key(final ModuleDNSQueries queries) {
+        return Arrays.asList(queries.getModuleId(), queries.getNumId(), queries.getIndependentRecordLocation(), queries.getHostedRecordLocation());
+    }
+
+    /**
+     * Get the end of a redirect chain.
+     *
+     * @param key the key built from the queries before any redirects
+     * @return the Entry, or null if there isn't one.
+     */
+    public Entry get(final List<Object> key) {
+        return redirects.get(key);
+    }
+
+    /**
+     * Remember the end of a redirect chain.
+     *
+     * @param key            the key built from the queries before any redirects
+     * @param target         the frozen queries after the redirects
+     * @param redirectCount  the number of redirects in the chain
+     * @param expiresAtNanos the System.nanoTime() at which the earliest DNS answer in the chain expires
+     */
+    public void put(final List<Object> key, final ModuleDNSQueries target, final int redirectCount, final long expiresAtNanos) {
+        final long ttlNanos = expiresAtNanos - System.nanoTime();
+        if (ttlNanos > 0) {
+            redirects.put(key, new Entry(target, redirectCount, expiresAtNanos), ttlNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * The end of a redirect chain.
+     */
+    @AllArgsConstructor
+    @Getter
+    public static final class Entry {
+
+        /**
+         * The frozen queries after the redirects.
+         */
+        private final ModuleDNSQueries target;
+
+        /**
+         * The number of redirects in the chain, which count towards the redirect limit.
+         */
+        private final int redirectCount;
+
+        /**
+         * The System.nanoTime() at which the chain expires.
+         */
+        private final long expiresAtNanos;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.cache;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import uk.num.numlib.api.NumLookupResult;
+import uk.num.numlib.internal.util.BoundedCache;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of lookup results, so that repeated lookups for a record skip DNS and the MODL interpreter. Each result
+ * expires with the earliest expiry of the cached DNS answers it was built from.
+ * <p>
+ * Results that are still being read late in their lifetime can be refreshed in the background before they expire, so
+ * that popular records never make a caller wait for DNS. The cache tracks which keys are being refreshed so that each
+ * result is only refreshed once.
+ * <p>
+ * Expired results can be kept for a configurable time so that a lookup that fails can serve the last good result
+ * instead, as described in RFC 8767. They are discarded when they expire by default.
+ */
+@Log4j2
+public final class ResultCache {
+
+    /**
+     * The maximum total length of the cached results, in characters.
+     */
+    private static final int MAXIMUM_WEIGHT = 16 * 1024 * 1024;
+
+    private final BoundedCache<List<Object>, Entry> results = new BoundedCache<List<Object>, Entry>(MAXIMUM_WEIGHT, 0, TimeUnit.SECONDS,
+            (key, entry) -> entry.result.getJson()
+                    .length()).expireInBackground(1, TimeUnit.MINUTES);
+
+    /**
+     * How long to keep results after they expire, for use when a lookup fails.
+     */
+    private volatile long maxStaleNanos = 0;
+
+    /**
+     * The optional second tier that new results are also written to.
+     */
+    private volatile PersistentStore persistentStore;
+
+    /**
+     * The keys of results that are being refreshed.
+     */
+    private final Set<List<Object>> refreshing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Change how long results are kept after they expire.
+     *
+     * @param maxStaleSeconds the time to keep expired results, or 0 to discard them when they expire.
+     */
+    public void setMaxStaleness(final long maxStaleSeconds) {
+        if (maxStaleSeconds < 0) {
+            throw new IllegalArgumentException("Invalid maximum staleness: " + maxStaleSeconds);
+        }
+        this.maxStaleNanos = TimeUnit.SECONDS.toNanos(maxStaleSeconds);
+    }
+
+    /**
+     * Get a cached result.
+     *
+     * @param key the lookup key
+     * @return the Entry, or null if there is no unexpired result.
+     */
+    public Entry get(final List<Object> key) {
+        final Entry entry = results.get(key);
+        if (entry == null || entry.isExpired()) {
+            return null;
+        }
+        log.trace("Result cache hit: {}", key);
+        return entry;
+    }
+
+    /**
+     * Get the last good result, even if it has expired, as long as it is within the maximum staleness.
+     *
+     * @param key the lookup key
+     * @return the Entry, or null if there is no result or stale results are disabled.
+     */
+    public Entry getStale(final List<Object> key) {
+        final long maxStale = maxStaleNanos;
+        if (maxStale == 0) {
+            return null;
+        }
+        final Entry entry = results.get(key);
+        // The maximum staleness might have been lowered since the entry was cached.
+        if (entry == null || System.nanoTime() - entry.getExpiresAtNanos() > maxStale) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Cache a result until the given time, and keep it for the maximum staleness after that.
+     *
+     * @param key            the lookup key
+     * @param result         the NumLookupResult
+     * @param expiresAtNanos the System.nanoTime() at which the result expires
+     */
+    public void put(final List<Object> key, final NumLookupResult result, final long expiresAtNanos) {
+        restore(key, result, expiresAtNanos);
+        final PersistentStore store = persistentStore;
+        if (store != null) {
+            store.appendResult(key, result, expiresAtNanos, expiresAtNanos + maxStaleNanos);
+        }
+    }
+
+    /**
+     * Put back a result that was cached before a restart, without writing it to the persistent store again.
+     *
+     * @param key            the lookup key
+     * @param result         the NumLookupResult
+     * @param expiresAtNanos the System.nanoTime() at which the result expires
+     */
+    public void restore(final List<Object> key, final NumLookupResult result, final long expiresAtNanos) {
+        final long now = System.nanoTime();
+        final long ttlNanos = expiresAtNanos - now + maxStaleNanos;
+        if (ttlNanos > 0) {
+            results.put(key, new Entry(result, now, expiresAtNanos), ttlNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Write new results to a persistent store as well.
+     *
+     * @param persistentStore the PersistentStore, or null to stop writing to it.
+     */
+    public void setPersistentStore(final PersistentStore persistentStore) {
+        this.persistentStore = persistentStore;
+    }
+
+    /**
+     * Claim the refresh of a result.
+     *
+     * @param key the lookup key
+     * @return true if the caller should refresh the result, false if it is already being refreshed.
+     */
+    public boolean startRefresh(final List<Object> key) {
+        return refreshing.add(key);
+    }
+
+    /**
+     * Release the refresh of a result, whether or not it succeeded.
+     *
+     * @param key the lookup key
+     */
+    public void finishRefresh(final List<Object> key) {
+        refreshing.remove(key);
+    }
+
+    /**
+     * Remove every result.
+     */
+    public void clear() {
+        results.clear();
+    }
+
+    /**
+     * A cached result with the time it was cached and the time it expires.
+     */
+    @Getter
+    public static final class Entry {
+        private final NumLookupResult result;
+
+        private final long createdAtNanos;
+
+        private final long expiresAtNanos;
+
+        private Entry(final NumLookupResult result, final long createdAtNanos, final long expiresAtNanos) {
+            this.result = result;
+            this.createdAtNanos = createdAtNanos;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        /**
+         * @return true if the result has expired and should only be used if a lookup fails.
+         */
+        public boolean isExpired() {
+            return expiresAtNanos - System.nanoTime() <= 0;
+        }
+
+        /**
+         * @param refreshFraction the fraction of the lifetime after which the result should be refreshed.
+         * @return true if the result has passed the given fraction of its lifetime.
+         */
+        public boolean isDueForRefresh(final double refreshFraction) {
+            final long lifetime = expiresAtNanos - createdAtNanos;
+            return System.nanoTime() - createdAtNanos >= (long) (lifetime * refreshFraction);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.cache;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import uk.num.numlib.api.NumAPICallbacks;
+import uk.num.numlib.internal.util.BoundedCache;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the Zone Distribution Record levels found for each email domain and location, so that later lookups for
+ * any address at the domain can query the distributed name straight away instead of fetching the Zone Distribution
+ * Record first. Each entry expires with the DNS answers it was learned from.
+ */
+public final class ZoneDistributionCache {
+
+    /**
+     * The maximum number of domain/location combinations to remember.
+     */
+    private static final int MAXIMUM_SIZE = 10_000;
+
+    private final BoundedCache<List<Object>, Entry> levels = new BoundedCache<List<Object>, Entry>(MAXIMUM_SIZE, 0, TimeUnit.SECONDS).expireInBackground(1,
+            TimeUnit.MINUTES);
+
+    /**
+     * Get the distribution levels for a domain.
+     *
+     * @param domain   the email domain
+     * @param location INDEPENDENT or HOSTED
+     * @return the Entry, or null if the levels aren't known.
+     */
+    public Entry get(final String domain, final NumAPICallbacks.Location location) {
+        return levels.get(Arrays.asList(domain, location));
+    }
+
+    /**
+     * Remember the distribution levels for a domain.
+     *
+     * @param domain         the email domain
+     * @param location       the location that the Zone Distribution Record was found at
+     * @param levels         the number of levels
+     * @param expiresAtNanos the System.nanoTime() at which the Zone Distribution Record expires
+     */
+    public void put(final String domain, final NumAPICallbacks.Location location, final int levels, final long expiresAtNanos) {
+        final long ttlNanos = expiresAtNanos - System.nanoTime();
+        if (ttlNanos > 0) {
+            this.levels.put(Arrays.asList(domain, location), new Entry(levels, expiresAtNanos), ttlNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Known distribution levels for a domain.
+     */
+    @AllArgsConstructor
+    @Getter
+    public static final class Entry {
+
+        /**
+         * The number of levels.
+         */
+        private final int levels;
+
+        /**
+         * The System.nanoTime() at which the levels expire.
+         */
+        private final long expiresAtNanos;
+    }
+}
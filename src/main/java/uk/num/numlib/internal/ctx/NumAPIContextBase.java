@@ -25,13 +25,18 @@ import uk.num.numlib.api.NumAPICallbacks;
 import uk.num.numlib.api.NumAPIContext;
 import uk.num.numlib.api.UserVariable;
 import uk.num.numlib.exc.*;
+import uk.num.numlib.internal.dns.TXTResponse;
 import uk.num.numlib.internal.module.ModuleDNSQueries;
+import uk.num.numlib.internal.util.CancellationScope;
 import uk.num.numlib.internal.util.UrlRelativePathResolver;
 import uk.num.validators.NumUriValidator;
 import uk.num.validators.ValidationResult;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A base class implementation of NumAPIContext.
@@ -65,8 +70,23 @@ public class NumAPIContextBase implements NumAPIContext {
     /**
      * Count redirects so we don't redirect forever.
      */
+    @Getter
     private int redirectCount = 0;
 
+    /**
+     * A frozen copy of the queries after the latest redirect, or null if no redirect has been followed since the
+     * lookup started.
+     */
+    @Getter
+    private ModuleDNSQueries redirectTarget;
+
+    /**
+     * The System.nanoTime() at which the redirects followed so far expire, i.e. the earliest expiry of the DNS answers
+     * used before the latest redirect.
+     */
+    @Getter
+    private long redirectExpiresAtNanos;
+
     /**
      * The location currently being checked for a NUM record.
      */
@@ -78,6 +98,113 @@ public class NumAPIContextBase implements NumAPIContext {
     @Setter
     private boolean dnsSecSigned;
 
+    /**
+     * true if the HOSTED location is being checked before the INDEPENDENT location because the domain's records were
+     * found there recently.
+     */
+    @Getter
+    @Setter
+    private boolean hostedFirst;
+
+    /**
+     * Speculative queries for the Zone Distributed INDEPENDENT locations, keyed by location, or null if there are none.
+     */
+    @Getter
+    @Setter
+    private Map<String, CompletableFuture<TXTResponse>> zoneDistributionProbes;
+
+    /**
+     * The maximum duration of the whole lookup in milliseconds, or 0 for no overall limit.
+     */
+    @Getter
+    @Setter
+    private long deadlineMillis;
+
+    /**
+     * true if cached NUM records should be ignored.
+     */
+    @Getter
+    @Setter
+    private boolean bypassCache;
+
+    /**
+     * true if the lookup failed and the result is the last good result from the cache instead.
+     */
+    @Getter
+    @Setter
+    private boolean stale;
+
+    /**
+     * true if a DNS query for the current lookup timed out or failed, so a missing record may not really be missing.
+     */
+    @Getter
+    @Setter
+    private boolean dnsFailure;
+
+    /**
+     * The steps of the current lookup, so they can be cancelled together.
+     */
+    @Getter
+    @Setter
+    private CancellationScope cancellationScope = new CancellationScope();
+
+    /**
+     * The System.nanoTime() at which the result of the current lookup expires, i.e. the earliest expiry of the cached
+     * DNS answers used so far.
+     */
+    private final AtomicLong resultExpiresAtNanos = new AtomicLong(Long.MAX_VALUE);
+
+    /**
+     * Start tracking the expiry of a new lookup result.
+     */
+    public void resetResultExpiry() {
+        resultExpiresAtNanos.set(Long.MAX_VALUE);
+    }
+
+    /**
+     * Make sure the lookup result expires no later than a DNS answer that it depends on.
+     *
+     * @param expiresAtNanos the System.nanoTime() at which the DNS answer expires
+     */
+    public void limitResultExpiry(final long expiresAtNanos) {
+        resultExpiresAtNanos.accumulateAndGet(expiresAtNanos, Math::min);
+    }
+
+    /**
+     * @return the System.nanoTime() at which the result of the current lookup expires.
+     */
+    public long getResultExpiresAtNanos() {
+        return resultExpiresAtNanos.get();
+    }
+
+    /**
+     * Go straight to the end of a redirect chain that was followed by an earlier lookup.
+     *
+     * @param target         the frozen queries at the end of the chain
+     * @param redirects      the number of redirects in the chain
+     * @param expiresAtNanos the System.nanoTime() at which the chain expires
+     */
+    public void followMemoisedRedirects(final ModuleDNSQueries target, final int redirects, final long expiresAtNanos) {
+        log.info("Following {} remembered redirects to: {}", redirects, target.getIndependentRecordLocation());
+        moduleDNSQueries = target;
+        redirectCount += redirects;
+        redirectTarget = null;
+        limitResultExpiry(expiresAtNanos);
+    }
+
+    /**
+     * Get the queries so that they can be changed. Shared queries are copied first, so that changes only affect this
+     * lookup.
+     *
+     * @return the ModuleDNSQueries for this lookup
+     */
+    public ModuleDNSQueries getModifiableModuleDNSQueries() {
+        if (moduleDNSQueries.isFrozen()) {
+            moduleDNSQueries = moduleDNSQueries.copy();
+        }
+        return moduleDNSQueries;
+    }
+
     /**
      * Count redirects and return the current number of redirects.
      *
@@ -125,6 +252,7 @@ public class NumAPIContextBase implements NumAPIContext {
             throw new NumMaximumRedirectsExceededException();
         }
 
+        getModifiableModuleDNSQueries();
         final ValidationResult validationResult = NumUriValidator.validate(redirect);
         if (validationResult.isValid()) {
             try {
@@ -142,6 +270,9 @@ public class NumAPIContextBase implements NumAPIContext {
                     break;
             }
         }
+        redirectTarget = moduleDNSQueries.copy()
+                .freeze();
+        redirectExpiresAtNanos = resultExpiresAtNanos.get();
     }
 
     private void handleNumUriRedirect(final URL numUri) throws NumInvalidParameterException {
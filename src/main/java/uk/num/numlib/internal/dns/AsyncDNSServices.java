@@ -0,0 +1,38 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.dns;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking access to NUM records in DNS.
+ */
+public interface AsyncDNSServices {
+
+    /**
+     * Start a TXT record query without waiting for the response.
+     * <p>
+     * The result completes with an empty record array if there is no record or the query times out. Only answers from
+     * the DNS server that the records do not exist have a negative caching TTL.
+     *
+     * @param query         The NUM formatted DNS query.
+     * @param timeoutMillis The number of milliseconds to wait for a response.
+     * @return a CompletableFuture for the TXTResponse
+     */
+    CompletableFuture<TXTResponse> getRecordFromDns(final String query, final int timeoutMillis);
+
+}
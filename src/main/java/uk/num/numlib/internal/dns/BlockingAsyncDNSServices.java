@@ -0,0 +1,67 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.dns;
+
+import lombok.NonNull;
+import uk.num.numlib.dns.DNSServices;
+import uk.num.numlib.internal.util.CancellationScope;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Adapts a blocking DNSServices implementation to the AsyncDNSServices interface by running each query on an
+ * Executor. Used when the caller supplies its own DNSServices.
+ * <p>
+ * DNSServices can't distinguish a missing record from a failed query, so empty responses never have a negative caching
+ * TTL.
+ */
+public final class BlockingAsyncDNSServices implements AsyncDNSServices {
+
+    private final DNSServices dnsServices;
+
+    private final Executor executor;
+
+    /**
+     * Constructor
+     *
+     * @param dnsServices the blocking DNSServices
+     * @param executor    the Executor to run queries on
+     */
+    public BlockingAsyncDNSServices(@NonNull final DNSServices dnsServices, @NonNull final Executor executor) {
+        this.dnsServices = dnsServices;
+        this.executor = executor;
+    }
+
+    /**
+     * Run the query on the Executor. Cancelling the result interrupts the query.
+     *
+     * @param query         The NUM formatted DNS query.
+     * @param timeoutMillis The number of milliseconds to wait for a response.
+     * @return a CompletableFuture for the TXTResponse
+     */
+    @Override
+    public CompletableFuture<TXTResponse> getRecordFromDns(final String query, final int timeoutMillis) {
+        return CancellationScope.supplyInterruptibly(() -> {
+            final DNSServices.GetRecordResponse response = dnsServices.getRecordFromDnsNoCache(query, timeoutMillis);
+            if (response == null) {
+                return TXTResponse.NO_ANSWER;
+            }
+            return new TXTResponse(response.isSigned(), response.getRecords(), -1);
+        }, executor);
+    }
+}
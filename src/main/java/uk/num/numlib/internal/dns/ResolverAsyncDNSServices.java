@@ -0,0 +1,245 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.dns;
+
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+import org.xbill.DNS.*;
+import uk.num.numlib.exc.NumInvalidDNSQueryException;
+
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Queries DNS using the non-blocking dnsjava Resolver API, so no thread waits for the response.
+ * <p>
+ * Like DNSServicesDefaultImpl, CNAMEs are followed and SPF records are ignored.
+ */
+@Log4j2
+public final class ResolverAsyncDNSServices implements AsyncDNSServices {
+
+    /**
+     * The maximum number of CNAMEs to follow, the same limit as dnsjava Lookup.
+     */
+    private static final int MAX_CNAME_HOPS = 16;
+
+    /**
+     * SPF records can share a name with NUM records but are never part of them.
+     */
+    private static final String SPF_PREFIX = "v=spf1";
+
+    /**
+     * The resolver to use, or null to use the dnsjava default resolver at the time of each query.
+     */
+    private final Resolver resolver;
+
+    /**
+     * Used to time out queries.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Constructor
+     *
+     * @param resolver  the Resolver to use, or null to use the dnsjava default resolver
+     * @param scheduler used to time out queries
+     */
+    public ResolverAsyncDNSServices(final Resolver resolver, @NonNull final ScheduledExecutorService scheduler) {
+        this.resolver = resolver;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Send a TXT query and complete the result when the response arrives or the timeout expires. The timeout covers
+     * any further queries needed to follow CNAMEs.
+     *
+     * @param query         The NUM formatted DNS query.
+     * @param timeoutMillis The number of milliseconds to wait for a response.
+     * @return a CompletableFuture for the TXTResponse
+     */
+    @Override
+    public CompletableFuture<TXTResponse> getRecordFromDns(final String query, final int timeoutMillis) {
+        final CompletableFuture<TXTResponse> result = new CompletableFuture<>();
+        final Name name;
+        try {
+            name = Name.fromString(query, Name.root);
+        } catch (final TextParseException e) {
+            log.error("Invalid DNS query: {}", query);
+            result.completeExceptionally(new NumInvalidDNSQueryException("Invalid DNS query: " + query));
+            return result;
+        }
+
+        final Resolver queryResolver = (resolver != null) ? resolver : Lookup.getDefaultResolver();
+        final AtomicReference<CompletableFuture<Message>> inFlight = new AtomicReference<>();
+
+        final ScheduledFuture<?> timeout = scheduler.schedule(() -> {
+            if (result.complete(TXTResponse.NO_ANSWER)) {
+                log.info("DNS query timed out: {}", query);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        // Release the timer and the underlying query when the result completes for any reason, including cancellation.
+        result.whenComplete((r, e) -> {
+            timeout.cancel(false);
+            final CompletableFuture<Message> response = inFlight.get();
+            if (response != null) {
+                response.cancel(false);
+            }
+        });
+
+        send(queryResolver, name, 0, true, result, inFlight);
+        return result;
+    }
+
+    /**
+     * Send one TXT query, then either complete the result or follow a CNAME that the response didn't resolve.
+     *
+     * @param queryResolver the Resolver to use
+     * @param name          the name to query
+     * @param hops          the number of CNAMEs followed so far
+     * @param signed        true if every earlier response in the CNAME chain had the Authenticated Data flag set
+     * @param result        completed with the TXTResponse
+     * @param inFlight      holds the current query so that it can be cancelled with the result
+     */
+    private static void send(final Resolver queryResolver, final Name name, final int hops, final boolean signed,
+                             final CompletableFuture<TXTResponse> result,
+                             final AtomicReference<CompletableFuture<Message>> inFlight) {
+        final Message request = Message.newQuery(Record.newRecord(name, Type.TXT, DClass.IN));
+        // Ask for the Authenticated Data flag so we can tell whether the record was DNSSEC signed.
+        request.getHeader()
+                .setFlag(Flags.AD);
+
+        final CompletableFuture<Message> response = queryResolver.sendAsync(request)
+                .toCompletableFuture();
+        inFlight.set(response);
+        if (result.isDone()) {
+            response.cancel(false);
+            return;
+        }
+
+        response.whenComplete((message, error) -> {
+            if (error != null) {
+                log.warn("DNS query failed: {}, {}", name, error.getMessage());
+                result.complete(TXTResponse.NO_ANSWER);
+                return;
+            }
+            final boolean chainSigned = signed && message.getHeader()
+                    .getFlag(Flags.AD);
+            final Name target = canonicalName(message, name);
+            if (target.equals(name) || message.getRcode() != Rcode.NOERROR || hasTxtRecords(message, target)) {
+                result.complete(toTXTResponse(message, target, chainSigned));
+            } else if (hops >= MAX_CNAME_HOPS) {
+                log.warn("Too many CNAMEs for DNS query: {}", name);
+                result.complete(TXTResponse.NO_ANSWER);
+            } else {
+                // The server gave us the CNAME but not the records it points to, so ask for them.
+                send(queryResolver, target, hops + 1, chainSigned, result, inFlight);
+            }
+        });
+    }
+
+    /**
+     * Follow any CNAME records for the name in the answer section of a response.
+     *
+     * @param message the DNS response
+     * @param name    the queried name
+     * @return the last name in the CNAME chain, or the queried name if there are no CNAMEs
+     */
+    private static Name canonicalName(final Message message, final Name name) {
+        Name current = name;
+        for (int i = 0; i < MAX_CNAME_HOPS; i++) {
+            final Name owner = current;
+            final Name target = message.getSection(Section.ANSWER)
+                    .stream()
+                    .filter(r -> r instanceof CNAMERecord && r.getName()
+                            .equals(owner))
+                    .map(r -> ((CNAMERecord) r).getTarget())
+                    .findFirst()
+                    .orElse(null);
+            if (target == null) {
+                break;
+            }
+            current = target;
+        }
+        return current;
+    }
+
+    /**
+     * @param message the DNS response
+     * @param name    the owner name
+     * @return true if the answer section has any TXT records for the name, including SPF records
+     */
+    private static boolean hasTxtRecords(final Message message, final Name name) {
+        return message.getSection(Section.ANSWER)
+                .stream()
+                .anyMatch(r -> r.getType() == Type.TXT && r.getName()
+                        .equals(name));
+    }
+
+    /**
+     * Extract the TXT records for a name from a DNS response, leaving out SPF records.
+     *
+     * @param message the DNS response
+     * @param name    the owner name of the records, i.e. the end of any CNAME chain
+     * @param signed  true if every response in the CNAME chain had the Authenticated Data flag set
+     * @return a TXTResponse
+     */
+    private static TXTResponse toTXTResponse(final Message message, final Name name, final boolean signed) {
+        final int rcode = message.getRcode();
+        if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN) {
+            return TXTResponse.NO_ANSWER;
+        }
+        final Record[] records = (rcode == Rcode.NXDOMAIN) ? new Record[]{} : message.getSection(Section.ANSWER)
+                .stream()
+                .filter(r -> r.getType() == Type.TXT && r.getName()
+                        .equals(name))
+                .filter(r -> !isSpf((TXTRecord) r))
+                .toArray(Record[]::new);
+        final long negativeTtlSeconds = (records.length == 0) ? negativeTtl(message) : -1;
+        return new TXTResponse(signed, records, negativeTtlSeconds);
+    }
+
+    /**
+     * @param record a TXT record
+     * @return true if it is an SPF record
+     */
+    private static boolean isSpf(final TXTRecord record) {
+        return String.join("", record.getStrings())
+                .toLowerCase(Locale.ROOT)
+                .startsWith(SPF_PREFIX);
+    }
+
+    /**
+     * RFC 2308: a negative answer can be cached for the lower of the TTL and the MINIMUM field of the SOA record in
+     * the authority section. Without an SOA record it must not be cached.
+     *
+     * @param message the NXDOMAIN or NODATA response
+     * @return the negative caching TTL in seconds, or -1 if there is no SOA record.
+     */
+    private static long negativeTtl(final Message message) {
+        return message.getSection(Section.AUTHORITY)
+                .stream()
+                .filter(r -> r instanceof SOARecord)
+                .mapToLong(r -> Math.min(r.getTTL(), ((SOARecord) r).getMinimum()))
+                .min()
+                .orElse(-1);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.dns;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.xbill.DNS.Record;
+
+/**
+ * The TXT records from a DNS response, and how long the absence of records can be cached if there are none.
+ */
+@AllArgsConstructor
+@Getter
+public final class TXTResponse {
+    /**
+     * Returned when there is no usable response, e.g. the query timed out or failed.
+     */
+    public static final TXTResponse NO_ANSWER = new TXTResponse(false, new Record[]{}, -1);
+
+    /**
+     * true if the response had the Authenticated Data flag set.
+     */
+    private final boolean signed;
+    /**
+     * The TXT records, which may be empty.
+     */
+    private final Record[] records;
+    /**
+     * The RFC 2308 negative caching TTL in seconds if the server said that the name or its TXT records do not exist,
+     * otherwise -1.
+     */
+    private final long negativeTtlSeconds;
+
+    /**
+     * @return true if there was no usable response, e.g. the query timed out or failed.
+     */
+    public boolean isFailure() {
+        return this == NO_ANSWER;
+    }
+
+    /**
+     * @return true if the server said that there are no TXT records and the answer can be cached.
+     */
+    public boolean isNegative() {
+        return records.length == 0 && negativeTtlSeconds >= 0;
+    }
+}
@@ -18,7 +18,6 @@ package uk.num.numlib.internal.module;
 
 import lombok.Getter;
 import lombok.NonNull;
-import lombok.Setter;
 import lombok.extern.log4j.Log4j2;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -27,8 +26,13 @@ import uk.num.numlib.exc.NumInvalidParameterException;
 import uk.num.numlib.exc.NumInvalidRedirectException;
 import uk.num.numlib.util.*;
 
+import java.util.Locale;
+
 /**
  * Class to hold the DNS query strings for a module and NUM ID combination.
+ * <p>
+ * Instances shared between lookups are frozen so that they can't be changed. A lookup that needs to redirect or
+ * distribute its queries works on a copy instead.
  *
  * @author tonywalmsley
  */
@@ -39,14 +43,13 @@ public final class ModuleDNSQueries {
      * The module ID, e.g. "1"
      */
     @Getter
-    @Setter
     private int moduleId;
 
     /**
      * The NUM ID to be queried.
      */
     @NonNull
-    @Setter
+    @Getter
     private String numId;
 
     /**
@@ -85,6 +88,12 @@ public final class ModuleDNSQueries {
     @Getter
     private boolean rootQuery = true;
 
+    /**
+     * true if the queries are shared and can no longer be changed.
+     */
+    @Getter
+    private boolean frozen;
+
     /**
      * Constructor
      *
@@ -104,6 +113,70 @@ public final class ModuleDNSQueries {
         this.numId = numId;
     }
 
+    /**
+     * Copy constructor
+     *
+     * @param other the ModuleDNSQueries to copy
+     */
+    private ModuleDNSQueries(final ModuleDNSQueries other) {
+        this.moduleId = other.moduleId;
+        this.numId = other.numId;
+        this.independentRecordLocation = other.independentRecordLocation;
+        this.rootIndependentRecordLocation = other.rootIndependentRecordLocation;
+        this.hostedRecordLocation = other.hostedRecordLocation;
+        this.rootHostedRecordLocation = other.rootHostedRecordLocation;
+        this.populatorLocation = other.populatorLocation;
+        this.rootQuery = other.rootQuery;
+    }
+
+    /**
+     * Copy the queries, so that redirects applied to the copy don't change this object. The copy is not frozen.
+     *
+     * @return a new ModuleDNSQueries
+     */
+    public ModuleDNSQueries copy() {
+        return new ModuleDNSQueries(this);
+    }
+
+    /**
+     * Stop the queries from being changed, so that they can be shared between lookups.
+     *
+     * @return this object
+     */
+    public ModuleDNSQueries freeze() {
+        frozen = true;
+        return this;
+    }
+
+    /**
+     * Fail if the queries are shared.
+     */
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("Shared ModuleDNSQueries can't be changed, use a copy.");
+        }
+    }
+
+    /**
+     * Set the module ID.
+     *
+     * @param moduleId the module ID
+     */
+    public void setModuleId(final int moduleId) {
+        checkNotFrozen();
+        this.moduleId = moduleId;
+    }
+
+    /**
+     * Set the NUM ID.
+     *
+     * @param numId the NUM ID
+     */
+    public void setNumId(@NonNull final String numId) {
+        checkNotFrozen();
+        this.numId = numId;
+    }
+
     /**
      * Build the DNS query Strings and set the root/branch flag.
      *
@@ -111,6 +184,7 @@ public final class ModuleDNSQueries {
      */
     public void initialise() throws NumInvalidParameterException {
         log.trace("initialise()");
+        checkNotFrozen();
 
         // Create a suitable LookupGenerator based on the type of the record specifier
         final LookupGenerator lookupGenerator;
@@ -141,6 +215,7 @@ public final class ModuleDNSQueries {
      */
     public void setEmailRecordDistributionLevels(final int levels) throws
                                                                    NumInvalidParameterException {
+        checkNotFrozen();
         if (numId.contains("@")) {
             // This only applies to email NUM IDs
             final EmailLookupGenerator generator = new EmailLookupGenerator(numId);
@@ -151,6 +226,56 @@ public final class ModuleDNSQueries {
         }
     }
 
+    /**
+     * A Zone Distribution Record has been found in the hosted zone, so only the hosted email lookup is updated.
+     *
+     * @param levels the number of levels to use for zone distribution
+     * @throws NumInvalidParameterException on error
+     */
+    public void setHostedRecordDistributionLevels(final int levels) throws
+                                                                    NumInvalidParameterException {
+        checkNotFrozen();
+        if (numId.contains("@")) {
+            hostedRecordLocation = new EmailLookupGenerator(numId).getDistributedHostedLocation(moduleId, levels);
+        } else {
+            log.warn("Attempt to distribute a non-email lookup using a Zone Distribution Record.");
+        }
+    }
+
+    /**
+     * Get the domain that the NUM ID belongs to.
+     *
+     * @return the lower case domain
+     */
+    public String getDomain() {
+        final String emailDomain = getEmailDomain();
+        if (emailDomain != null) {
+            return emailDomain;
+        }
+        String domainAndPath = numId;
+        final int scheme = domainAndPath.indexOf("://");
+        if (scheme >= 0) {
+            domainAndPath = domainAndPath.substring(scheme + 3);
+        }
+        final int slash = domainAndPath.indexOf(StringConstants.URL_PATH_SEPARATOR);
+        return ((slash < 0) ? domainAndPath : domainAndPath.substring(0, slash)).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Get the domain of an email NUM ID, which is the unit that Zone Distribution Records apply to.
+     *
+     * @return the lower case domain, or null if the NUM ID is not an email address.
+     */
+    public String getEmailDomain() {
+        final int at = numId.indexOf('@');
+        if (at < 0) {
+            return null;
+        }
+        final String domainAndPath = numId.substring(at + 1);
+        final int slash = domainAndPath.indexOf(StringConstants.URL_PATH_SEPARATOR);
+        return ((slash < 0) ? domainAndPath : domainAndPath.substring(0, slash)).toLowerCase(Locale.ROOT);
+    }
+
     /**
      * Extract the 'path' portion of the hosted record
      *
@@ -201,6 +326,7 @@ public final class ModuleDNSQueries {
      * @throws NumInvalidRedirectException if the redirect attempts to redirect outside the root record
      */
     public void redirectHostedPath(final String path) throws NumInvalidRedirectException {
+        checkNotFrozen();
         final String newLocation = ("/".equals(path)) ? rootHostedRecordLocation : fromPath(path) + StringConstants.DOMAIN_SEPARATOR + rootHostedRecordLocation;
         if (newLocation.equals(hostedRecordLocation)) {
             throw new NumInvalidRedirectException("Cannot redirect back to the same location.");
@@ -215,6 +341,7 @@ public final class ModuleDNSQueries {
      * @throws NumInvalidRedirectException if the redirect attempts to redirect outside the root record
      */
     public void redirectIndependentPath(final String path) throws NumInvalidRedirectException {
+        checkNotFrozen();
         final String newLocation = ("/".equals(path)) ? rootIndependentRecordLocation : fromPath(path) + StringConstants.DOMAIN_SEPARATOR + rootIndependentRecordLocation;
         if (newLocation.equals(independentRecordLocation)) {
             throw new NumInvalidRedirectException("Cannot redirect back to the same location.");
@@ -18,7 +18,9 @@ package uk.num.numlib.internal.module;
 
 import lombok.extern.log4j.Log4j2;
 import uk.num.numlib.exc.NumInvalidParameterException;
-import uk.num.numlib.internal.util.SimpleCache;
+import uk.num.numlib.internal.util.BoundedCache;
+
+import java.util.concurrent.TimeUnit;
 
 /**
  * A factory for ModuleDNSQuery objects.
@@ -28,13 +30,20 @@ import uk.num.numlib.internal.util.SimpleCache;
 @Log4j2
 public final class ModuleFactory {
 
+    /**
+     * The maximum number of module/NUM ID combinations to cache.
+     */
+    private static final int MAXIMUM_SIZE = 10_000;
+
     /**
      * A cache for module/NUM ID combinations.
      */
-    private final SimpleCache<String, ModuleDNSQueries> moduleMap = new SimpleCache<>();
+    private final BoundedCache<String, ModuleDNSQueries> moduleMap = new BoundedCache<String, ModuleDNSQueries>(MAXIMUM_SIZE, 10, TimeUnit.MINUTES).expireInBackground(1,
+            TimeUnit.MINUTES);
 
     /**
-     * Create and initialise a ModuleDNSQueries object or use a cached object.
+     * Create and initialise a ModuleDNSQueries object or use a cached object. The result is frozen because it is
+     * shared, so callers that need to change it must copy it.
      *
      * @param moduleNumber the module name string, e.g. "1"
      * @param numId        the NUM ID to be queried for a NUM record.
@@ -49,24 +58,34 @@ public final class ModuleFactory {
             throw new NumInvalidParameterException("Module number should be >= 0 but is: " + moduleNumber);
         }
         final String key = moduleNumber + "_" + numId;
-        // Critical section - we're reading then updating moduleMap, which is a potential race condition
-        synchronized (moduleMap) {
-            result = moduleMap.get(key);
-            if (result == null) {
-                result = new ModuleDNSQueries(moduleNumber, numId);
+        result = moduleMap.get(key);
+        if (result == null) {
+            result = new ModuleDNSQueries(moduleNumber, numId);
 
-                // Initialisation as a separate step since its an 'expensive' operation. Allows us to create lots of
-                // Modules if necessary but then only initialise the ones we use.
-                result.initialise();
+            // Initialisation as a separate step since its an 'expensive' operation. Allows us to create lots of
+            // Modules if necessary but then only initialise the ones we use.
+            result.initialise();
+            result.freeze();
 
-                // Do this last in case there's an exception so we don't store an invalid ModuleDNSQueries object
-                moduleMap.put(key, result);
-                log.trace("Cached a new set of ModuleDNSQueries.");
+            // Do this last in case there's an exception so we don't store an invalid ModuleDNSQueries object. If
+            // another thread got there first then use its object so that every caller sees the same one.
+            final ModuleDNSQueries existing = moduleMap.putIfAbsent(key, result);
+            if (existing != null) {
+                result = existing;
             } else {
-                log.trace("Using cached ModuleDNSQueries.");
+                log.trace("Cached a new set of ModuleDNSQueries.");
             }
+        } else {
+            log.trace("Using cached ModuleDNSQueries.");
         }
         return result;
     }
 
+    /**
+     * @return the hit, miss and eviction statistics for the ModuleDNSQueries cache.
+     */
+    public BoundedCache.Statistics getCacheStatistics() {
+        return moduleMap.getStatistics();
+    }
+
 }
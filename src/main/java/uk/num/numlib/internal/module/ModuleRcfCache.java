@@ -0,0 +1,455 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.module;
+
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.io.IOUtils;
+import uk.num.numlib.internal.util.PrivateFiles;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the module RCF files in memory, and optionally on local disk, so that interpreting a NUM record doesn't fetch the RCF over
+ * HTTP every time.
+ * <p>
+ * A cached RCF is always returned straight away. If it is older than the revalidation interval then it is revalidated
+ * in the background with a conditional request using its ETag and Last-Modified time, so the network is only on the
+ * critical path the first time an RCF is used and there is no copy on disk. Even then, prefetch() lets the fetch
+ * overlap with the DNS query for the record that needs the RCF.
+ */
+@Log4j2
+public final class ModuleRcfCache {
+
+    /**
+     * RCFs change rarely, so cached copies are revalidated at most this often by default.
+     */
+    private static final long DEFAULT_REVALIDATE_AFTER_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * The connect and read timeout for background revalidation.
+     */
+    private static final int REVALIDATION_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * The RCFs that have been loaded, by URL.
+     */
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * RCFs that aren't in memory and are being loaded from disk or fetched, by URL.
+     */
+    private final ConcurrentMap<String, Load> loading = new ConcurrentHashMap<>();
+
+    /**
+     * The URLs that are being revalidated.
+     */
+    private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Runs the background revalidations.
+     */
+    private final Executor executor;
+
+    /**
+     * Where RCFs are saved so that they survive a restart, or null to keep them in memory only.
+     */
+    private volatile File directory;
+
+    private volatile long revalidateAfterMillis = DEFAULT_REVALIDATE_AFTER_MILLIS;
+
+    /**
+     * Constructor
+     *
+     * @param executor  runs the background revalidations
+     * @param directory where RCFs are saved, or null to keep them in memory only.
+     */
+    public ModuleRcfCache(@NonNull final Executor executor, final File directory) {
+        this.executor = executor;
+        this.directory = directory;
+    }
+
+    /**
+     * Get the content of an RCF. A cached copy is returned without waiting for the network, otherwise the RCF is
+     * fetched.
+     *
+     * @param url           the URL of the RCF
+     * @param timeoutMillis the connect and read timeout if the RCF has to be fetched.
+     * @return the RCF content, or null if there is no cached copy and it couldn't be fetched.
+     */
+    public String get(@NonNull final String url, final int timeoutMillis) {
+        Entry entry = entries.get(url);
+        if (entry == null) {
+            entry = load(url, timeoutMillis);
+            if (entry == null) {
+                return null;
+            }
+        }
+        if (System.currentTimeMillis() - entry.fetchedAtMillis >= revalidateAfterMillis) {
+            revalidateInBackground(url);
+        }
+        return entry.content;
+    }
+
+    /**
+     * The MODL to put in front of a NUM record so that the interpreter has the RCF. This is the cached RCF content,
+     * which the interpreter treats the same as loading it, or a *load instruction if the RCF can't be loaded, in which
+     * case the interpreter fetches it itself.
+     *
+     * @param url           the URL of the RCF
+     * @param timeoutMillis the connect and read timeout if the RCF has to be fetched.
+     * @return the MODL, ending with a semicolon
+     */
+    public String getModl(@NonNull final String url, final int timeoutMillis) {
+        final String rcf = get(url, timeoutMillis);
+        if (rcf == null) {
+            return loadInstruction(url);
+        }
+        final String trimmed = rcf.trim();
+        return trimmed.endsWith(";") ? trimmed : trimmed + ";";
+    }
+
+    /**
+     * A MODL instruction that makes the interpreter fetch an RCF, bypassing its own cache.
+     *
+     * @param url the URL of the RCF
+     * @return the MODL, ending with a semicolon
+     */
+    public static String loadInstruction(@NonNull final String url) {
+        return "*load=\"" + url + "!\";";
+    }
+
+    /**
+     * Start loading an RCF in the background if it isn't in memory, so that a later get() finds it ready or only
+     * waits for the rest of the fetch.
+     *
+     * @param url           the URL of the RCF
+     * @param timeoutMillis the connect and read timeout if the RCF has to be fetched.
+     */
+    public void prefetch(@NonNull final String url, final int timeoutMillis) {
+        if (entries.containsKey(url)) {
+            return;
+        }
+        final Load load = new Load(url, timeoutMillis);
+        if (loading.putIfAbsent(url, load) != null) {
+            return;
+        }
+        try {
+            executor.execute(load);
+        } catch (final RuntimeException e) {
+            // The next get() runs the load instead.
+            log.warn("Unable to start prefetching {}: {}", url, e.getMessage());
+        }
+    }
+
+    /**
+     * Load an RCF that isn't in memory, or wait for a prefetch that is already loading it.
+     *
+     * @param url           the URL of the RCF
+     * @param timeoutMillis the connect and read timeout, and the longest time to wait for a prefetch.
+     * @return the Entry, or null if the RCF couldn't be loaded in time.
+     */
+    private Entry load(final String url, final int timeoutMillis) {
+        final Load load = loading.computeIfAbsent(url, u -> new Load(u, timeoutMillis));
+        // Run the load on this thread unless a prefetch has already started it, so that a queued prefetch never
+        // holds up the lookup.
+        load.run();
+        try {
+            return load.result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread()
+                    .interrupt();
+            return null;
+        } catch (final ExecutionException | TimeoutException e) {
+            log.warn("Unable to fetch {}: {}", url, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Set the directory that RCFs are saved to. The directory must belong to the current user and must not be writable
+     * by other users, otherwise it is ignored, since anyone who can write to it can change the RCFs.
+     *
+     * @param directory the directory, which is created if necessary, or null to keep RCFs in memory only.
+     */
+    public void setDirectory(final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Set how old a cached RCF can get before it is revalidated.
+     *
+     * @param revalidateAfterMillis the age in milliseconds, 0 to revalidate on every use.
+     */
+    public void setRevalidateAfterMillis(final long revalidateAfterMillis) {
+        if (revalidateAfterMillis < 0) {
+            throw new IllegalArgumentException("revalidateAfterMillis should be >= 0 but is: " + revalidateAfterMillis);
+        }
+        this.revalidateAfterMillis = revalidateAfterMillis;
+    }
+
+    /**
+     * Discard the RCFs held in memory. Copies on disk are kept.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Revalidate a cached RCF without blocking the caller. Only one revalidation runs for each URL at a time.
+     *
+     * @param url the URL of the RCF
+     */
+    private void revalidateInBackground(final String url) {
+        if (!revalidating.add(url)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    final Entry current = entries.get(url);
+                    store(url, fetch(url, current, REVALIDATION_TIMEOUT_MILLIS));
+                } catch (final IOException e) {
+                    log.warn("Unable to revalidate {}, the cached copy is still in use: {}", url, e.getMessage());
+                } finally {
+                    revalidating.remove(url);
+                }
+            });
+        } catch (final RuntimeException e) {
+            revalidating.remove(url);
+            log.warn("Unable to start revalidating {}: {}", url, e.getMessage());
+        }
+    }
+
+    /**
+     * Fetch an RCF, or check that a cached copy is still current.
+     *
+     * @param url           the URL of the RCF
+     * @param cached        the cached copy, or null
+     * @param timeoutMillis the connect and read timeout
+     * @return a new Entry
+     * @throws IOException if the RCF couldn't be fetched
+     */
+    private static Entry fetch(final String url, final Entry cached, final int timeoutMillis) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            if (cached != null) {
+                if (cached.etag != null) {
+                    connection.setRequestProperty("If-None-Match", cached.etag);
+                }
+                if (cached.lastModified > 0) {
+                    connection.setIfModifiedSince(cached.lastModified);
+                }
+            }
+            final int status = connection.getResponseCode();
+            final long now = System.currentTimeMillis();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                log.trace("{} has not changed.", url);
+                return new Entry(cached.content, cached.etag, cached.lastModified, now);
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP status " + status);
+            }
+            try (final InputStream in = connection.getInputStream()) {
+                final String content = IOUtils.toString(in, StandardCharsets.UTF_8);
+                log.trace("Fetched {}", url);
+                return new Entry(content, connection.getHeaderField("ETag"), connection.getLastModified(), now);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Keep an RCF in memory and save it to disk.
+     *
+     * @param url   the URL of the RCF
+     * @param entry the Entry
+     */
+    private void store(final String url, final Entry entry) {
+        entries.put(url, entry);
+        final File dir = directory;
+        if (dir == null) {
+            return;
+        }
+        final Properties properties = new Properties();
+        properties.setProperty("url", url);
+        properties.setProperty("content", entry.content);
+        if (entry.etag != null) {
+            properties.setProperty("etag", entry.etag);
+        }
+        properties.setProperty("lastModified", Long.toString(entry.lastModified));
+        properties.setProperty("fetchedAt", Long.toString(entry.fetchedAtMillis));
+        try {
+            PrivateFiles.createDirectory(dir);
+            // Write to a temporary file first so that other processes never see a partly written file. It is only
+            // readable by the current user.
+            final File file = fileFor(dir, url);
+            final Path temp = Files.createTempFile(dir.toPath(), file.getName(), ".tmp");
+            try (final OutputStream out = Files.newOutputStream(temp)) {
+                properties.store(out, null);
+            }
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            log.warn("Unable to save {} to {}: {}", url, dir, e.getMessage());
+        }
+    }
+
+    /**
+     * Load a saved RCF.
+     *
+     * @param url the URL of the RCF
+     * @return the Entry, or null if there isn't a usable copy on disk.
+     */
+    private Entry readFromDisk(final String url) {
+        final File dir = directory;
+        if (dir == null) {
+            return null;
+        }
+        final File file = fileFor(dir, url);
+        if (!file.isFile()) {
+            return null;
+        }
+        final Properties properties = new Properties();
+        try {
+            PrivateFiles.checkOwner(dir.toPath());
+            PrivateFiles.checkOwner(file.toPath());
+        } catch (final IOException e) {
+            log.warn("Ignoring {}: {}", file, e.getMessage());
+            return null;
+        }
+        try (final InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+            final String content = properties.getProperty("content");
+            if (content == null || !url.equals(properties.getProperty("url"))) {
+                return null;
+            }
+            return new Entry(content, properties.getProperty("etag"), Long.parseLong(properties.getProperty("lastModified", "0")),
+                    Long.parseLong(properties.getProperty("fetchedAt", "0")));
+        } catch (final IOException | NumberFormatException e) {
+            log.warn("Ignoring unreadable file {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The file for an RCF, named by a hash of its URL.
+     *
+     * @param dir the cache directory
+     * @param url the URL of the RCF
+     * @return the File
+     */
+    private static File fileFor(final File dir, final String url) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-256")
+                    .digest(url.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder name = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                name.append(String.format("%02x", hash[i]));
+            }
+            return new File(dir, name.append(".rcf")
+                    .toString());
+        } catch (final NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Loads an RCF from disk, or fetches it, exactly once, on whichever thread runs it first.
+     */
+    private final class Load implements Runnable {
+
+        private final String url;
+
+        private final int timeoutMillis;
+
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        /**
+         * Completes with the Entry, or null if the RCF couldn't be loaded.
+         */
+        private final CompletableFuture<Entry> result = new CompletableFuture<>();
+
+        private Load(final String url, final int timeoutMillis) {
+            this.url = url;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public void run() {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            Entry entry = null;
+            try {
+                entry = readFromDisk(url);
+                if (entry != null) {
+                    entries.putIfAbsent(url, entry);
+                } else {
+                    entry = fetch(url, null, timeoutMillis);
+                    store(url, entry);
+                }
+            } catch (final IOException e) {
+                log.warn("Unable to fetch {}: {}", url, e.getMessage());
+            } finally {
+                loading.remove(url, this);
+                result.complete(entry);
+            }
+        }
+    }
+
+    /**
+     * A cached RCF and the validators needed to revalidate it.
+     */
+    @AllArgsConstructor
+    private static final class Entry {
+
+        private final String content;
+
+        private final String etag;
+
+        private final long lastModified;
+
+        private final long fetchedAtMillis;
+    }
+}
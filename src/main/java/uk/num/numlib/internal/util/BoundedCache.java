@@ -0,0 +1,660 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.util;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import lombok.extern.log4j.Log4j2;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * A thread-safe cache bounded by the total weight of its entries, with an expiry time for each entry.
+ * <p>
+ * Reads and writes don't wait for each other. Writes update the map straight away and queue their changes to the
+ * eviction policy, which are applied in order by whichever thread next holds the policy lock, so the cache can be
+ * briefly over its maximum weight while another thread is applying them. Eviction uses W-TinyLFU: new entries go into a small LRU admission window, and when the window
+ * overflows its oldest entry only displaces the least recently used entries of the main space if its key has been
+ * requested more often. Request frequencies are estimated with a count-min sketch that is halved periodically so that
+ * old popularity fades. This keeps popular entries in the cache when there are lots of keys that are only seen once.
+ *
+ * @param <K> The class that the keys will be instances of.
+ * @param <V> The class that the values will be instances of.
+ */
+@Log4j2
+public final class BoundedCache<K, V> {
+
+    /**
+     * The percentage of the maximum weight used for the admission window.
+     */
+    private static final int WINDOW_PERCENT = 1;
+
+    /**
+     * Removes expired entries from caches that have asked for background expiry.
+     */
+    private static final ScheduledExecutorService EXPIRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("num-cache-expiry"));
+
+    private final ConcurrentMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+
+    /**
+     * Guards the eviction policy: the window and main LRU lists, their weights and the frequency sketch.
+     */
+    private final ReentrantLock policyLock = new ReentrantLock();
+
+    /**
+     * Changes to the eviction policy from writes, waiting for a thread to hold the policy lock.
+     */
+    private final Queue<Runnable> writeBuffer = new ConcurrentLinkedQueue<>();
+
+    private final LinkedHashMap<K, Node<K, V>> window = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LinkedHashMap<K, Node<K, V>> main = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final FrequencySketch sketch;
+
+    private final long maximumWeight;
+
+    private final long windowMaximum;
+
+    private final long defaultTtlNanos;
+
+    private final ToIntBiFunction<? super K, ? super V> weigher;
+
+    private final LongSupplier ticker;
+
+    private long windowWeight;
+
+    private long mainWeight;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * Constructor for a cache where every entry has a weight of 1.
+     *
+     * @param maximumSize the maximum number of entries
+     * @param defaultTtl  the time to keep entries that are added without their own TTL
+     * @param unit        the TimeUnit of defaultTtl
+     */
+    public BoundedCache(final long maximumSize, final long defaultTtl, @NonNull final TimeUnit unit) {
+        this(maximumSize, defaultTtl, unit, (k, v) -> 1);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maximumWeight the maximum total weight of the entries
+     * @param defaultTtl    the time to keep entries that are added without their own TTL
+     * @param unit          the TimeUnit of defaultTtl
+     * @param weigher       calculates the weight of an entry, which must not be negative
+     */
+    public BoundedCache(final long maximumWeight, final long defaultTtl, @NonNull final TimeUnit unit, @NonNull final ToIntBiFunction<? super K, ? super V> weigher) {
+        this(maximumWeight, defaultTtl, unit, weigher, System::nanoTime);
+    }
+
+    /**
+     * Constructor with a clock for testing.
+     *
+     * @param maximumWeight the maximum total weight of the entries
+     * @param defaultTtl    the time to keep entries that are added without their own TTL
+     * @param unit          the TimeUnit of defaultTtl
+     * @param weigher       calculates the weight of an entry, which must not be negative
+     * @param ticker        the current time in nanoseconds
+     */
+    BoundedCache(final long maximumWeight, final long defaultTtl, final TimeUnit unit, final ToIntBiFunction<? super K, ? super V> weigher, final LongSupplier ticker) {
+        if (maximumWeight < 1) {
+            throw new IllegalArgumentException("maximumWeight should be >= 1 but is: " + maximumWeight);
+        }
+        if (defaultTtl < 0) {
+            throw new IllegalArgumentException("defaultTtl should be >= 0 but is: " + defaultTtl);
+        }
+        this.maximumWeight = maximumWeight;
+        this.windowMaximum = Math.max(1, maximumWeight * WINDOW_PERCENT / 100);
+        this.defaultTtlNanos = unit.toNanos(defaultTtl);
+        this.weigher = weigher;
+        this.ticker = ticker;
+        this.sketch = new FrequencySketch(maximumWeight);
+    }
+
+    /**
+     * Remove expired entries periodically on a shared background thread, rather than only when they are read. The
+     * task stops when the cache is garbage collected.
+     *
+     * @param period the time between sweeps
+     * @param unit   the TimeUnit of period
+     * @return this cache
+     */
+    public BoundedCache<K, V> expireInBackground(final long period, @NonNull final TimeUnit unit) {
+        final ExpiryTask task = new ExpiryTask(this);
+        task.future = EXPIRY_SCHEDULER.scheduleWithFixedDelay(task, period, period, unit);
+        return this;
+    }
+
+    /**
+     * Get an item from the cache.
+     *
+     * @param key The key of class K
+     * @return null if the item is not present or has expired, otherwise the value of class V
+     */
+    public V get(@NonNull final K key) {
+        final Node<K, V> node = data.get(key);
+        if (node == null) {
+            misses.increment();
+            recordRead(key, null);
+            return null;
+        }
+        if (node.isExpired(ticker.getAsLong())) {
+            misses.increment();
+            removeExpired(node);
+            recordRead(key, null);
+            return null;
+        }
+        hits.increment();
+        recordRead(key, node);
+        return node.value;
+    }
+
+    /**
+     * Add an item to the cache with the default TTL.
+     *
+     * @param key   The key of class K
+     * @param value The value of class V
+     */
+    public void put(@NonNull final K key, @NonNull final V value) {
+        put(key, value, defaultTtlNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Add an item to the cache with its own TTL. Items with a TTL of 0 or less, or a weight greater than the maximum
+     * weight, are not cached.
+     *
+     * @param key   The key of class K
+     * @param value The value of class V
+     * @param ttl   the time to keep the item
+     * @param unit  the TimeUnit of ttl
+     */
+    public void put(@NonNull final K key, @NonNull final V value, final long ttl, @NonNull final TimeUnit unit) {
+        final Node<K, V> node = newNode(key, value, unit.toNanos(ttl));
+        if (node == null) {
+            final Node<K, V> old = data.remove(key);
+            if (old != null) {
+                afterWrite(() -> detach(old));
+            }
+            return;
+        }
+        final Node<K, V> old = data.put(key, node);
+        afterWrite(() -> {
+            if (old != null) {
+                detach(old);
+            }
+            added(node);
+        });
+    }
+
+    /**
+     * Add an item with the default TTL unless there is already an unexpired item for the key.
+     *
+     * @param key   The key of class K
+     * @param value The value of class V
+     * @return the existing value, or null if the new value was added.
+     */
+    public V putIfAbsent(@NonNull final K key, @NonNull final V value) {
+        final Node<K, V> node = newNode(key, value, defaultTtlNanos);
+        while (true) {
+            final Node<K, V> existing = data.get(key);
+            if (existing != null && !existing.isExpired(ticker.getAsLong())) {
+                recordRead(key, existing);
+                return existing.value;
+            }
+            if (node == null) {
+                if (existing != null) {
+                    removeExpired(existing);
+                }
+                return null;
+            }
+            if ((existing == null) ? data.putIfAbsent(key, node) == null : data.replace(key, existing, node)) {
+                afterWrite(() -> {
+                    if (existing != null) {
+                        detach(existing);
+                    }
+                    added(node);
+                });
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Remove an item from the cache.
+     *
+     * @param key The key of class K
+     */
+    public void invalidate(@NonNull final K key) {
+        final Node<K, V> node = data.remove(key);
+        if (node != null) {
+            afterWrite(() -> detach(node));
+        }
+    }
+
+    /**
+     * Remove every item.
+     */
+    public void clear() {
+        policyLock.lock();
+        try {
+            drainWriteBuffer();
+            data.clear();
+            window.clear();
+            main.clear();
+            windowWeight = 0;
+            mainWeight = 0;
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * Remove every expired item now.
+     */
+    public void cleanUp() {
+        final long now = ticker.getAsLong();
+        for (final Node<K, V> node : data.values()) {
+            if (node.isExpired(now)) {
+                removeExpired(node);
+            }
+        }
+    }
+
+    /**
+     * @return the number of items, including any that have expired but have not been removed yet.
+     */
+    public int size() {
+        return data.size();
+    }
+
+    /**
+     * Take a snapshot of the cache statistics.
+     *
+     * @return a Statistics object
+     */
+    public Statistics getStatistics() {
+        final long weight;
+        policyLock.lock();
+        try {
+            drainWriteBuffer();
+            weight = windowWeight + mainWeight;
+        } finally {
+            policyLock.unlock();
+        }
+        return new Statistics(hits.sum(), misses.sum(), evictions.sum(), expirations.sum(), data.size(), weight);
+    }
+
+    /**
+     * Count the request and move the item to the most recently used position. Reads skip this if another thread holds
+     * the policy lock, so that they never block. Losing a few reads doesn't noticeably affect the eviction policy.
+     *
+     * @param key  the key that was read
+     * @param node the item that was read, or null for a miss
+     */
+    private void recordRead(final K key, final Node<K, V> node) {
+        if (!policyLock.tryLock()) {
+            return;
+        }
+        try {
+            sketch.increment(key);
+            if (node != null && data.get(key) == node) {
+                touch(node);
+            }
+            drainWriteBuffer();
+        } finally {
+            policyLock.unlock();
+        }
+        // A write may have been queued after the buffer was drained but before the lock was released.
+        afterWrite(null);
+    }
+
+    /**
+     * Create an item, unless it shouldn't be cached.
+     *
+     * @param key      The key of class K
+     * @param value    The value of class V
+     * @param ttlNanos the time to keep the item
+     * @return the Node, or null if the TTL is 0 or less or the weight is greater than the maximum weight.
+     */
+    private Node<K, V> newNode(final K key, final V value, final long ttlNanos) {
+        final int weight = weigher.applyAsInt(key, value);
+        if (weight < 0) {
+            throw new IllegalArgumentException("Negative weight for key: " + key);
+        }
+        if (ttlNanos <= 0 || weight > maximumWeight) {
+            return null;
+        }
+        return new Node<>(key, value, weight, ticker.getAsLong() + ttlNanos);
+    }
+
+    /**
+     * Queue a change to the eviction policy and apply the queued changes if no other thread is applying them. The
+     * thread holding the lock rechecks the queue after releasing it, so no change is left behind.
+     *
+     * @param task the change, or null to only apply the queued changes
+     */
+    private void afterWrite(final Runnable task) {
+        if (task != null) {
+            writeBuffer.add(task);
+        }
+        while (!writeBuffer.isEmpty() && policyLock.tryLock()) {
+            try {
+                drainWriteBuffer();
+            } finally {
+                policyLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Apply the queued changes to the eviction policy. Must hold the policy lock.
+     */
+    private void drainWriteBuffer() {
+        Runnable task;
+        while ((task = writeBuffer.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Add a new item to the admission window. Must hold the policy lock.
+     *
+     * @param node the item
+     */
+    private void added(final Node<K, V> node) {
+        // The item may already have been replaced or removed by a later write.
+        if (data.get(node.key) != node) {
+            return;
+        }
+        sketch.increment(node.key);
+        node.inWindow = true;
+        window.put(node.key, node);
+        windowWeight += node.weight;
+        evict();
+    }
+
+    /**
+     * Move items from the window to the main space, subject to the TinyLFU admission policy, until both are within
+     * their limits.
+     */
+    private void evict() {
+        final long mainMaximum = maximumWeight - windowMaximum;
+        while (windowWeight > windowMaximum && !window.isEmpty()) {
+            final Node<K, V> candidate = pollFirst(window);
+            windowWeight -= candidate.weight;
+            candidate.inWindow = false;
+            admit(candidate, mainMaximum);
+        }
+        // Items heavier than the window or main space can still leave the cache over its limit.
+        while (windowWeight + mainWeight > maximumWeight) {
+            final Node<K, V> victim = main.isEmpty() ? pollFirst(window) : pollFirst(main);
+            if (victim.inWindow) {
+                windowWeight -= victim.weight;
+            } else {
+                mainWeight -= victim.weight;
+            }
+            evicted(victim);
+        }
+    }
+
+    /**
+     * Add a candidate from the window to the main space if there is room, or if it is requested more often than the
+     * least recently used items that it would displace.
+     *
+     * @param candidate   the item leaving the window
+     * @param mainMaximum the maximum weight of the main space
+     */
+    private void admit(final Node<K, V> candidate, final long mainMaximum) {
+        final int candidateFrequency = sketch.frequency(candidate.key);
+        while (mainWeight + candidate.weight > mainMaximum && !main.isEmpty()) {
+            final Node<K, V> victim = main.values()
+                    .iterator()
+                    .next();
+            if (sketch.frequency(victim.key) >= candidateFrequency) {
+                evicted(candidate);
+                return;
+            }
+            main.remove(victim.key);
+            mainWeight -= victim.weight;
+            evicted(victim);
+        }
+        main.put(candidate.key, candidate);
+        mainWeight += candidate.weight;
+    }
+
+    private void evicted(final Node<K, V> node) {
+        if (data.remove(node.key, node)) {
+            evictions.increment();
+            log.trace("Evicted: {}", node.key);
+        }
+    }
+
+    private void removeExpired(final Node<K, V> node) {
+        if (data.remove(node.key, node)) {
+            expirations.increment();
+            afterWrite(() -> detach(node));
+        }
+    }
+
+    private void touch(final Node<K, V> node) {
+        (node.inWindow ? window : main).get(node.key);
+    }
+
+    private void detach(final Node<K, V> node) {
+        if (node.inWindow) {
+            if (window.remove(node.key, node)) {
+                windowWeight -= node.weight;
+            }
+        } else if (main.remove(node.key, node)) {
+            mainWeight -= node.weight;
+        }
+    }
+
+    private static <K, V> Node<K, V> pollFirst(final LinkedHashMap<K, Node<K, V>> list) {
+        final Iterator<Node<K, V>> iterator = list.values()
+                .iterator();
+        final Node<K, V> first = iterator.next();
+        iterator.remove();
+        return first;
+    }
+
+    /**
+     * A snapshot of the cache statistics.
+     */
+    @AllArgsConstructor
+    @Getter
+    @ToString
+    public static final class Statistics {
+        private final long hitCount;
+
+        private final long missCount;
+
+        private final long evictionCount;
+
+        private final long expiredCount;
+
+        private final long size;
+
+        private final long weight;
+    }
+
+    private static final class Node<K, V> {
+        private final K key;
+
+        private final V value;
+
+        private final int weight;
+
+        private final long expiresAtNanos;
+
+        /**
+         * true if the item is in the admission window, false if it is in the main space. Guarded by the policy lock.
+         */
+        private boolean inWindow;
+
+        private Node(final K key, final V value, final int weight, final long expiresAtNanos) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        private boolean isExpired(final long now) {
+            return expiresAtNanos - now <= 0;
+        }
+    }
+
+    /**
+     * A count-min sketch of 4-bit counters, in four rows, packed sixteen to a long. The counters are halved after a
+     * sample of increments so that the estimates reflect recent requests.
+     */
+    private static final class FrequencySketch {
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private static final int MAX_COUNT = 15;
+
+        /**
+         * Halves every 4-bit counter in a long once it has been shifted right by one bit.
+         */
+        private static final long HALF_MASK = 0x7777777777777777L;
+
+        private final long[][] rows;
+
+        private final int mask;
+
+        private final int sampleSize;
+
+        private int additions;
+
+        /**
+         * The widest row, which limits the sketch to 512KB.
+         */
+        private static final int MAX_WIDTH = 1 << 18;
+
+        private FrequencySketch(final long maximumWeight) {
+            // Four counters per entry keeps collisions rare enough for the estimates to be useful.
+            final int width = Integer.highestOneBit((int) Math.max(16, Math.min(maximumWeight * 4, MAX_WIDTH)) * 2 - 1);
+            rows = new long[SEEDS.length][width / 16];
+            mask = width - 1;
+            sampleSize = width * 10;
+        }
+
+        private int frequency(final Object key) {
+            final int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < rows.length; i++) {
+                frequency = Math.min(frequency, count(rows[i], index(hash, i)));
+            }
+            return frequency;
+        }
+
+        private void increment(final Object key) {
+            final int hash = key.hashCode();
+            final int frequency = frequency(key);
+            if (frequency < MAX_COUNT) {
+                // Conservative update: only the smallest counters are incremented.
+                for (int i = 0; i < rows.length; i++) {
+                    final int index = index(hash, i);
+                    if (count(rows[i], index) == frequency) {
+                        rows[i][index >>> 4] += 1L << shift(index);
+                    }
+                }
+            }
+            if (++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (final long[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = (row[i] >>> 1) & HALF_MASK;
+                }
+            }
+            additions /= 2;
+        }
+
+        private static int count(final long[] row, final int index) {
+            return (int) ((row[index >>> 4] >>> shift(index)) & MAX_COUNT);
+        }
+
+        private static int shift(final int index) {
+            return (index & 15) << 2;
+        }
+
+        private int index(final int hash, final int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return h & mask;
+        }
+    }
+
+    /**
+     * Runs cleanUp() without keeping the cache reachable, and cancels itself when the cache has been collected.
+     */
+    private static final class ExpiryTask implements Runnable {
+        private final WeakReference<BoundedCache<?, ?>> cache;
+
+        private volatile ScheduledFuture<?> future;
+
+        private ExpiryTask(final BoundedCache<?, ?> cache) {
+            this.cache = new WeakReference<>(cache);
+        }
+
+        @Override
+        public void run() {
+            final BoundedCache<?, ?> target = cache.get();
+            if (target == null) {
+                if (future != null) {
+                    future.cancel(false);
+                }
+                return;
+            }
+            try {
+                target.cleanUp();
+            } catch (final RuntimeException e) {
+                log.error("Cache expiry failed.", e);
+            }
+        }
+    }
+}
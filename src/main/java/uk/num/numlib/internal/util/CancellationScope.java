@@ -0,0 +1,109 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.util;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Tracks the steps of a lookup that are in progress - DNS queries, scheduled retries and interpretation - so that they
+ * can all be cancelled when the caller no longer wants the result.
+ */
+public final class CancellationScope {
+
+    /**
+     * The steps that have not completed yet.
+     */
+    private final Set<CompletableFuture<?>> inProgress = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean cancelled;
+
+    /**
+     * Run a task on an Executor. Unlike CompletableFuture.supplyAsync(), cancelling the result interrupts the task if
+     * it is running, and stops it from running if it has not started.
+     *
+     * @param task     the task
+     * @param executor the Executor to run the task on
+     * @param <T>      the result type
+     * @return a CompletableFuture for the result of the task
+     */
+    public static <T> CompletableFuture<T> supplyInterruptibly(final Callable<T> task, final Executor executor) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final FutureTask<Void> futureTask = new FutureTask<>(() -> {
+            try {
+                result.complete(task.call());
+            } catch (final Exception e) {
+                result.completeExceptionally(e);
+            }
+        }, null);
+        result.whenComplete((value, error) -> {
+            if (result.isCancelled()) {
+                futureTask.cancel(true);
+            }
+        });
+        executor.execute(futureTask);
+        return result;
+    }
+
+    /**
+     * Track a step until it completes. The step is cancelled straight away if the scope has already been cancelled.
+     *
+     * @param step the step
+     * @param <T>  the result type
+     * @return the step
+     */
+    public <T> CompletableFuture<T> track(final CompletableFuture<T> step) {
+        inProgress.add(step);
+        step.whenComplete((value, error) -> inProgress.remove(step));
+        if (cancelled) {
+            step.cancel(true);
+        }
+        return step;
+    }
+
+    /**
+     * Cancel every step in progress and any step that is tracked later.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (final CompletableFuture<?> step : inProgress) {
+            step.cancel(true);
+        }
+    }
+
+    /**
+     * @return true if the scope has been cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @param <T> the result type
+     * @return a CompletableFuture that has been cancelled, for steps that should not start.
+     */
+    public static <T> CompletableFuture<T> cancelledFuture() {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(new CancellationException("The lookup has been cancelled."));
+        return future;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.util;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of asynchronous tasks that are in progress at the same time without blocking any threads. Tasks
+ * that cannot start yet are queued and started in order as earlier tasks complete. Cancelling the CompletableFuture
+ * for a task cancels the task and frees its permit straight away, or stops it from starting if it is still queued.
+ */
+public final class ConcurrencyLimiter {
+
+    /**
+     * Tasks waiting for a permit.
+     */
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of tasks that can still be started.
+     */
+    private final AtomicInteger permits;
+
+    /**
+     * Ensures only one thread at a time starts queued tasks, and that tasks completing synchronously do not recurse.
+     */
+    private final AtomicInteger drainRequests = new AtomicInteger();
+
+    /**
+     * Constructor
+     *
+     * @param maxInProgress the maximum number of tasks in progress at the same time.
+     */
+    public ConcurrencyLimiter(final int maxInProgress) {
+        if (maxInProgress < 1) {
+            throw new IllegalArgumentException("maxInProgress should be >= 1 but is: " + maxInProgress);
+        }
+        permits = new AtomicInteger(maxInProgress);
+    }
+
+    /**
+     * Start a task now if there is a free permit, otherwise when one becomes available.
+     *
+     * @param task supplies the asynchronous task, only called once the task is allowed to start.
+     * @param <T>  the result type
+     * @return a CompletableFuture that completes with the result of the task.
+     */
+    public <T> CompletableFuture<T> submit(final Supplier<? extends CompletionStage<T>> task) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        waiting.add(() -> start(task, result));
+        drain();
+        return result;
+    }
+
+    /**
+     * @return the number of tasks waiting to start.
+     */
+    public int getQueueDepth() {
+        return waiting.size();
+    }
+
+    private <T> void start(final Supplier<? extends CompletionStage<T>> task, final CompletableFuture<T> result) {
+        if (result.isDone()) {
+            // Cancelled while it was queued. Only drain() starts tasks, and it carries on with the returned permit.
+            permits.incrementAndGet();
+            return;
+        }
+        // The permit is released when the task completes or when it is cancelled, whichever comes first.
+        final AtomicBoolean released = new AtomicBoolean();
+        final Runnable releaseOnce = () -> {
+            if (released.compareAndSet(false, true)) {
+                release();
+            }
+        };
+        try {
+            final CompletableFuture<T> stage = task.get()
+                    .toCompletableFuture();
+            stage.whenComplete((value, error) -> {
+                releaseOnce.run();
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            });
+            result.whenComplete((value, error) -> {
+                if (result.isCancelled()) {
+                    stage.cancel(true);
+                    releaseOnce.run();
+                }
+            });
+        } catch (final RuntimeException e) {
+            releaseOnce.run();
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void release() {
+        permits.incrementAndGet();
+        drain();
+    }
+
+    private void drain() {
+        if (drainRequests.getAndIncrement() != 0) {
+            // Another thread is draining and will pick up this request.
+            return;
+        }
+        do {
+            // Only the draining thread takes permits, so checking then decrementing is safe.
+            while (permits.get() > 0) {
+                final Runnable next = waiting.poll();
+                if (next == null) {
+                    break;
+                }
+                permits.decrementAndGet();
+                next.run();
+            }
+        } while (drainRequests.decrementAndGet() != 0);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.util;
+
+import uk.num.numlib.exc.NumLookupTimeoutException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time budget for a whole lookup, shared by every DNS query, populator retry and interpretation step so that
+ * each step only gets the time that is left.
+ */
+public final class Deadline {
+
+    /**
+     * The timeout for a single DNS query.
+     */
+    private final int queryTimeoutMillis;
+
+    /**
+     * The budget for the whole lookup, or 0 if there is no overall limit.
+     */
+    private final long budgetMillis;
+
+    /**
+     * When the budget runs out, in System.nanoTime() terms.
+     */
+    private final long expiresAtNanos;
+
+    private Deadline(final int queryTimeoutMillis, final long budgetMillis) {
+        this.queryTimeoutMillis = queryTimeoutMillis;
+        this.budgetMillis = Math.max(0, budgetMillis);
+        this.expiresAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.budgetMillis);
+    }
+
+    /**
+     * Start the clock for a lookup.
+     *
+     * @param queryTimeoutMillis the timeout for a single DNS query.
+     * @param budgetMillis       the budget for the whole lookup, or 0 if there is no overall limit.
+     * @return a new Deadline
+     */
+    public static Deadline start(final int queryTimeoutMillis, final long budgetMillis) {
+        return new Deadline(queryTimeoutMillis, budgetMillis);
+    }
+
+    /**
+     * @return true if there is a limit on the whole lookup.
+     */
+    public boolean isBounded() {
+        return budgetMillis > 0;
+    }
+
+    /**
+     * @return true if the budget has run out.
+     */
+    public boolean isExpired() {
+        return isBounded() && expiresAtNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @return the milliseconds left in the budget, or Long.MAX_VALUE if there is no overall limit.
+     */
+    public long getRemainingMillis() {
+        if (!isBounded()) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime()));
+    }
+
+    /**
+     * @return the timeout for the next DNS query, which is no longer than the time left.
+     */
+    public int getQueryTimeoutMillis() {
+        return (int) Math.max(1, Math.min(queryTimeoutMillis, getRemainingMillis()));
+    }
+
+    /**
+     * @return the timeout for the MODL interpreter, rounded up to whole seconds.
+     */
+    public long getInterpreterTimeoutSeconds() {
+        final long millis = isBounded() ? getRemainingMillis() : queryTimeoutMillis;
+        return Math.max(1, (millis + 999) / 1000);
+    }
+
+    /**
+     * Fail if the budget has run out.
+     *
+     * @throws NumLookupTimeoutException if the budget has run out.
+     */
+    public void check() throws NumLookupTimeoutException {
+        if (isExpired()) {
+            throw expired();
+        }
+    }
+
+    /**
+     * @return the exception used to report that the budget has run out.
+     */
+    public NumLookupTimeoutException expired() {
+        return new NumLookupTimeoutException("The lookup did not complete within " + budgetMillis + " milliseconds.");
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline(queryTimeoutMillis=" + queryTimeoutMillis + ", remainingMillis=" + (isBounded() ? getRemainingMillis() : "unbounded") + ")";
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.util;
+
+import lombok.NonNull;
+
+import java.util.concurrent.*;
+
+/**
+ * Adapts a plain Future to a CompletableFuture without blocking a thread until the Future completes.
+ */
+public final class FutureAdapter {
+
+    /**
+     * The first delay before checking a Future again.
+     */
+    private static final long MIN_POLL_MILLIS = 1;
+
+    /**
+     * The delay doubles on each check up to this limit.
+     */
+    private static final long MAX_POLL_MILLIS = 50;
+
+    /**
+     * Checks every adapted Future. The checks are short because get() is only called once the Future is done.
+     */
+    private static final ScheduledExecutorService POLLER = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "num-future-adapter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private FutureAdapter() {
+    }
+
+    /**
+     * Complete a CompletableFuture with the result of a Future. A Future that is already a CompletionStage is used
+     * directly, any other Future is checked on a shared scheduler thread until it is done. Cancelling the returned
+     * CompletableFuture cancels the Future.
+     *
+     * @param future the Future
+     * @param <T>    the result type
+     * @return a CompletableFuture that completes when the Future does.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> CompletableFuture<T> toCompletableFuture(@NonNull final Future<T> future) {
+        if (future instanceof CompletionStage) {
+            return ((CompletionStage<T>) future).toCompletableFuture();
+        }
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        result.whenComplete((r, e) -> {
+            if (result.isCancelled()) {
+                future.cancel(true);
+            }
+        });
+        poll(future, result, MIN_POLL_MILLIS);
+        return result;
+    }
+
+    private static <T> void poll(final Future<T> future, final CompletableFuture<T> result, final long delayMillis) {
+        if (result.isDone()) {
+            return;
+        }
+        if (!future.isDone()) {
+            POLLER.schedule(() -> poll(future, result, Math.min(delayMillis * 2, MAX_POLL_MILLIS)), delayMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        try {
+            result.complete(future.get());
+        } catch (final CancellationException e) {
+            result.cancel(false);
+        } catch (final ExecutionException e) {
+            result.completeExceptionally(e.getCause());
+        } catch (final InterruptedException e) {
+            Thread.currentThread()
+                    .interrupt();
+            result.completeExceptionally(e);
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.util;
+
+import uk.num.numlib.api.NumExecutorStatistics;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread pool for NUM lookups that records how long tasks wait in the queue before they start running.
+ */
+public final class LookupExecutor extends ThreadPoolExecutor {
+
+    /**
+     * Lookups spend nearly all of their time waiting on DNS, so the pool is sized well above the number of cores.
+     */
+    public static final int DEFAULT_THREADS = Math.min(64, Math.max(8, Runtime.getRuntime()
+            .availableProcessors() * 8));
+
+    /**
+     * Idle threads are released after this many seconds.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * Total nanoseconds that tasks have spent waiting in the queue.
+     */
+    private final LongAdder totalWaitNanos = new LongAdder();
+
+    /**
+     * The number of tasks that have started running.
+     */
+    private final LongAdder startedTasks = new LongAdder();
+
+    /**
+     * The longest time any task has spent waiting in the queue.
+     */
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param threads the maximum number of lookups that can run at the same time.
+     */
+    public LookupExecutor(final int threads) {
+        super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new DaemonThreadFactory("num-lookup"));
+        allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Build a statistics snapshot for any ExecutorService. Only ThreadPoolExecutors can report queue and thread
+     * counts, the other values are reported as -1.
+     *
+     * @param executor the ExecutorService
+     * @return a NumExecutorStatistics object
+     */
+    public static NumExecutorStatistics statisticsFor(final ExecutorService executor) {
+        if (executor instanceof LookupExecutor) {
+            return ((LookupExecutor) executor).statistics();
+        }
+        if (executor instanceof ThreadPoolExecutor) {
+            final ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            return new NumExecutorStatistics(pool.getQueue()
+                    .size(), pool.getActiveCount(), pool.getPoolSize(), pool.getCompletedTaskCount(), -1, -1);
+        }
+        return new NumExecutorStatistics(-1, -1, -1, -1, -1, -1);
+    }
+
+    /**
+     * Take a snapshot of the current queue depth, thread counts and queue wait times.
+     *
+     * @return a NumExecutorStatistics object
+     */
+    public NumExecutorStatistics statistics() {
+        final long started = startedTasks.sum();
+        final long averageWaitMillis = (started == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.sum() / started);
+        return new NumExecutorStatistics(getQueue().size(), getActiveCount(), getPoolSize(), getCompletedTaskCount(), averageWaitMillis, TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+    }
+
+    /**
+     * Wrap each task so that its time in the queue can be measured.
+     *
+     * @param command the task to execute
+     */
+    @Override
+    public void execute(final Runnable command) {
+        final long queuedAt = System.nanoTime();
+        super.execute(() -> {
+            final long waited = System.nanoTime() - queuedAt;
+            totalWaitNanos.add(waited);
+            startedTasks.increment();
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+            command.run();
+        });
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Set;
+
+/**
+ * Creates and checks the files that the caches keep on local disk, so that their content can be trusted: they must
+ * belong to the current user and no other user may write to them.
+ */
+public final class PrivateFiles {
+
+    private PrivateFiles() {
+    }
+
+    /**
+     * Create a directory if it doesn't exist, accessible only by the current user, and check that it is safe to use.
+     *
+     * @param dir the directory
+     * @throws IOException if the directory can't be created or another user could write to it
+     */
+    public static void createDirectory(final File dir) throws IOException {
+        final Path path = dir.toPath();
+        if (!Files.isDirectory(path)) {
+            if (isPosix(path)) {
+                Files.createDirectories(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectories(path);
+            }
+        }
+        checkOwner(path);
+    }
+
+    /**
+     * Create a file if it doesn't exist, readable and writable only by the current user, and check that it is safe to
+     * use.
+     *
+     * @param file the file
+     * @throws IOException if the file can't be created or another user could write to it
+     */
+    public static void createFile(final File file) throws IOException {
+        final Path path = file.toPath();
+        try {
+            if (isPosix(path)) {
+                Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } else {
+                Files.createFile(path);
+            }
+        } catch (final FileAlreadyExistsException e) {
+            // Checked below.
+        }
+        checkOwner(path);
+    }
+
+    /**
+     * Check that a file or directory belongs to the current user and can't be written by other users.
+     *
+     * @param path the file or directory
+     * @throws IOException if it belongs to another user or another user can write to it
+     */
+    public static void checkOwner(final Path path) throws IOException {
+        final UserPrincipal user = path.getFileSystem()
+                .getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+        if (!user.equals(Files.getOwner(path))) {
+            throw new IOException(path + " does not belong to " + user.getName());
+        }
+        if (isPosix(path)) {
+            final Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
+            if (permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+                throw new IOException(path + " can be written by other users");
+            }
+        }
+    }
+
+    /**
+     * @param path a file or directory
+     * @return true if the file system has POSIX permissions
+     */
+    private static boolean isPosix(final Path path) {
+        return path.getFileSystem()
+                .supportedFileAttributeViews()
+                .contains("posix");
+    }
+
+}
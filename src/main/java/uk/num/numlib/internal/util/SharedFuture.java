@@ -0,0 +1,105 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A result shared by several subscribers. Each subscriber gets its own CompletableFuture, and the source is only
+ * cancelled once every subscriber has cancelled.
+ *
+ * @param <T> the result type
+ */
+public final class SharedFuture<T> {
+
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+
+    /**
+     * The number of subscribers that have not cancelled, starting with the creator.
+     */
+    private final AtomicInteger subscribers = new AtomicInteger(1);
+
+    private volatile CompletableFuture<? extends T> source;
+
+    /**
+     * Set the source of the result.
+     *
+     * @param source the CompletableFuture that produces the result
+     */
+    public void setSource(final CompletableFuture<? extends T> source) {
+        this.source = source;
+        source.whenComplete((value, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        });
+        if (subscribers.get() == 0) {
+            source.cancel(true);
+        }
+    }
+
+    /**
+     * Add a subscriber, unless every earlier subscriber has already cancelled.
+     *
+     * @return true if the caller can subscribe, false if the shared result has been abandoned.
+     */
+    public boolean attach() {
+        return subscribers.getAndUpdate(n -> (n == 0) ? 0 : n + 1) > 0;
+    }
+
+    /**
+     * Get a CompletableFuture for this subscriber. Cancelling it detaches the subscriber.
+     *
+     * @param mapper converts the shared result for this subscriber
+     * @param <R>    the subscriber's result type
+     * @return a CompletableFuture for this subscriber
+     */
+    public <R> CompletableFuture<R> subscribe(final Function<? super T, ? extends R> mapper) {
+        final CompletableFuture<R> subscriber = new CompletableFuture<>();
+        result.whenComplete((value, error) -> {
+            if (error != null) {
+                subscriber.completeExceptionally(error);
+                return;
+            }
+            try {
+                subscriber.complete(mapper.apply(value));
+            } catch (final RuntimeException e) {
+                subscriber.completeExceptionally(e);
+            }
+        });
+        subscriber.whenComplete((value, error) -> {
+            if (subscriber.isCancelled()) {
+                detach();
+            }
+        });
+        return subscriber;
+    }
+
+    private void detach() {
+        if (subscribers.decrementAndGet() == 0) {
+            final CompletableFuture<? extends T> s = source;
+            if (s != null) {
+                s.cancel(true);
+            }
+            result.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.util;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Virtual thread support. This is the Java 8 version, the Java 21 version in `src/main/java21` replaces it in the
+ * multi-release jar.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+
+    }
+
+    /**
+     * @return true if virtual threads are available on this JVM.
+     */
+    public static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * Virtual threads are not available before Java 21, so check isSupported() first.
+     *
+     * @return never returns
+     * @throws UnsupportedOperationException always
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        throw new UnsupportedOperationException("Virtual threads need Java 21 or later.");
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.api;
+
+import lombok.extern.log4j.Log4j2;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xbill.DNS.Record;
+import uk.num.net.NumProtocolSupport;
+import uk.num.numlib.exc.NumLookupTimeoutException;
+import uk.num.numlib.exc.NumNoRecordAvailableException;
+import uk.num.numlib.internal.dns.DummyDNSServices;
+import uk.num.numlib.util.EmailLookupGenerator;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Log4j2
+public class NumAPIAsyncTest {
+
+    @Test
+    public void test_01_async_lookup() throws Exception {
+        final NumAPIImpl numAPI = new NumAPIImpl(new DummyDNSServices(), null);
+        final NumAPIContext ctx = numAPI.begin("numexample.com:1", 1000);
+
+        final NumLookupResult result = numAPI.retrieveNumRecordAsync(ctx, 1000)
+                .toCompletableFuture()
+                .get(60, TimeUnit.SECONDS);
+
+        Assert.assertTrue("Missing expected value.", result.getJson()
+                .contains("NUM Example Co"));
+        Assert.assertEquals(NumAPICallbacks.Location.INDEPENDENT, result.getLocation());
+        Assert.assertFalse(result.isDnsSecSigned());
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_02_async_lookup_no_record() throws Exception {
+        final NumAPIImpl numAPI = new NumAPIImpl(new DummyDNSServices(), null);
+        final NumAPIContext ctx = numAPI.begin("no-such-record.numexample.com:1", 1000);
+
+        final CompletableFuture<NumLookupResult> future = numAPI.retrieveNumRecordAsync(ctx, 1000)
+                .toCompletableFuture();
+        try {
+            future.get(60, TimeUnit.SECONDS);
+            Assert.fail("Expected an exception.");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue("Incorrect exception.", e.getCause() instanceof NumNoRecordAvailableException);
+        }
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_03_hedged_lookup_prefers_independent() throws Exception {
+        final NumAPIImpl numAPI = new NumAPIImpl(new DummyDNSServices(), null);
+        numAPI.setHedgeDelayMillis(0);
+        final NumAPIContext ctx = numAPI.begin("numexample.com:1", 1000);
+
+        final NumLookupResult result = numAPI.retrieveNumRecordAsync(ctx, 1000)
+                .toCompletableFuture()
+                .get(60, TimeUnit.SECONDS);
+
+        Assert.assertEquals(NumAPICallbacks.Location.INDEPENDENT, result.getLocation());
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_04_hedged_lookup_falls_back_to_hosted() throws Exception {
+        final NumAPIImpl numAPI = new NumAPIImpl(new DummyDNSServices(), null);
+        numAPI.setHedgeDelayMillis(10);
+        final NumAPIContext ctx = numAPI.begin("hosted-numexample.com:1", 1000);
+
+        final NumLookupResult result = numAPI.retrieveNumRecordAsync(ctx, 1000)
+                .toCompletableFuture()
+                .get(60, TimeUnit.SECONDS);
+
+        Assert.assertTrue("Missing expected value.", result.getJson()
+                .contains("NUM Example Co"));
+        Assert.assertEquals(NumAPICallbacks.Location.HOSTED, result.getLocation());
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_05_batch_lookup() throws Exception {
+        NumProtocolSupport.init();
+        final NumAPIImpl numAPI = new NumAPIImpl(new DummyDNSServices(), null);
+        numAPI.setMaxBatchLookups(2);
+        final List<URL> addresses = Arrays.asList(NumProtocolSupport.toUrl("numexample.com:1"),
+                NumProtocolSupport.toUrl("NUMEXAMPLE.COM:1/"),
+                NumProtocolSupport.toUrl("hosted-numexample.com:1"),
+                NumProtocolSupport.toUrl("no-such-record.numexample.com:1"));
+
+        final List<CompletionStage<NumLookupResult>> results = numAPI.retrieveNumRecords(addresses, 1000);
+
+        Assert.assertEquals(addresses.size(), results.size());
+        Assert.assertEquals(NumAPICallbacks.Location.INDEPENDENT, results.get(0)
+                .toCompletableFuture()
+                .get(60, TimeUnit.SECONDS)
+                .getLocation());
+        Assert.assertEquals(results.get(0)
+                .toCompletableFuture()
+                .get(60, TimeUnit.SECONDS)
+                .getJson(), results.get(1)
+                .toCompletableFuture()
+                .get(60, TimeUnit.SECONDS)
+                .getJson());
+        Assert.assertEquals(NumAPICallbacks.Location.HOSTED, results.get(2)
+                .toCompletableFuture()
+                .get(60, TimeUnit.SECONDS)
+                .getLocation());
+        try {
+            results.get(3)
+                    .toCompletableFuture()
+                    .get(60, TimeUnit.SECONDS);
+            Assert.fail("Expected an exception.");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue("Incorrect exception.", e.getCause() instanceof NumNoRecordAvailableException);
+        }
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_06_identical_lookups_are_coalesced() throws Exception {
+        final AtomicInteger queries = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final NumAPIImpl numAPI = new NumAPIImpl(new DummyDNSServices() {
+            @Override
+            public GetRecordResponse getRecordFromDnsNoCache(final String query, final int timeoutMillis) {
+                queries.incrementAndGet();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread()
+                            .interrupt();
+                }
+                return super.getRecordFromDnsNoCache(query, timeoutMillis);
+            }
+        }, null);
+
+        final CompletableFuture<NumLookupResult> first = numAPI.retrieveNumRecordAsync(numAPI.begin("numexample.com:1", 1000), 1000)
+                .toCompletableFuture();
+        final NumAPIContext ctx = numAPI.begin("numexample.com:1", 1000);
+        final CompletableFuture<NumLookupResult> second = numAPI.retrieveNumRecordAsync(ctx, 1000)
+                .toCompletableFuture();
+        release.countDown();
+
+        Assert.assertEquals(first.get(60, TimeUnit.SECONDS)
+                .getJson(), second.get(60, TimeUnit.SECONDS)
+                .getJson());
+        Assert.assertEquals(NumAPICallbacks.Location.INDEPENDENT, ctx.getLocation());
+        Assert.assertEquals("Identical lookups should share DNS queries.", 1, queries.get());
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_07_lookup_fails_when_the_deadline_passes() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final NumAPIImpl numAPI = new NumAPIImpl(new DummyDNSServices() {
+            @Override
+            public GetRecordResponse getRecordFromDnsNoCache(final String query, final int timeoutMillis) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread()
+                            .interrupt();
+                }
+                return super.getRecordFromDnsNoCache(query, timeoutMillis);
+            }
+        }, null);
+        final NumAPIContext ctx = numAPI.begin("hosted-numexample.com:1", 1000);
+        ctx.setDeadlineMillis(100);
+
+        final long start = System.currentTimeMillis();
+        try {
+            numAPI.retrieveNumRecordAsync(ctx, 1000)
+                    .toCompletableFuture()
+                    .get(60, TimeUnit.SECONDS);
+            Assert.fail("Expected an exception.");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue("Incorrect exception.", e.getCause() instanceof NumLookupTimeoutException);
+        }
+        Assert.assertTrue("The lookup should fail soon after the deadline.", System.currentTimeMillis() - start < 5000);
+        release.countDown();
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_08_cancel_interrupts_the_dns_query() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final NumAPIImpl numAPI = new NumAPIImpl(new DummyDNSServices() {
+            @Override
+            public GetRecordResponse getRecordFromDnsNoCache(final String query, final int timeoutMillis) {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (final InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return super.getRecordFromDnsNoCache(query, timeoutMillis);
+            }
+        }, null);
+        final NumAPIContext ctx = numAPI.begin("numexample.com:1", 1000);
+
+        final Future<String> future = numAPI.retrieveNumRecord(ctx, new NumAPICallbacksDefaultHandler(), 1000);
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        future.cancel(true);
+
+        Assert.assertTrue("The DNS query should be interrupted.", interrupted.await(5, TimeUnit.SECONDS));
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_09_zone_distribution_is_probed_in_parallel() throws Exception {
+        final List<String> names = new CopyOnWriteArrayList<>();
+        final NumAPIImpl numAPI = new NumAPIImpl(new DummyDNSServices() {
+            @Override
+            public GetRecordResponse getRecordFromDnsNoCache(final String query, final int timeoutMillis) {
+                names.add(query);
+                return super.getRecordFromDnsNoCache(query, timeoutMillis);
+            }
+        }, null);
+        numAPI.setZoneDistributionProbeBudget(3);
+        final NumAPIContext ctx = numAPI.begin("john.smith@dist1.email.com:1", 1000);
+
+        final NumLookupResult result = numAPI.retrieveNumRecordAsync(ctx, 1000)
+                .toCompletableFuture()
+                .get(60, TimeUnit.SECONDS);
+
+        Assert.assertTrue("Missing expected value.", result.getJson()
+                .contains("NUM Example Co"));
+        Assert.assertEquals(NumAPICallbacks.Location.INDEPENDENT, result.getLocation());
+        final String distributed = new EmailLookupGenerator("john.smith@dist1.email.com").getDistributedIndependentLocation(1, 1);
+        Assert.assertEquals("The speculative query should be used.", 1, names.stream()
+                .filter(distributed::equals)
+                .count());
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_10_cancelling_the_first_lookup_does_not_fail_the_others() throws Exception {
+        final AtomicInteger queries = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final NumAPIImpl numAPI = new NumAPIImpl(new DummyDNSServices() {
+            @Override
+            public GetRecordResponse getRecordFromDnsNoCache(final String query, final int timeoutMillis) {
+                queries.incrementAndGet();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread()
+                            .interrupt();
+                }
+                return super.getRecordFromDnsNoCache(query, timeoutMillis);
+            }
+        }, null);
+
+        final CompletableFuture<NumLookupResult> first = numAPI.retrieveNumRecordAsync(numAPI.begin("numexample.com:1", 1000), 1000)
+                .toCompletableFuture();
+        final CompletableFuture<NumLookupResult> second = numAPI.retrieveNumRecordAsync(numAPI.begin("numexample.com:1", 1000), 1000)
+                .toCompletableFuture();
+        first.cancel(true);
+        release.countDown();
+
+        Assert.assertTrue("Missing expected value.", second.get(60, TimeUnit.SECONDS)
+                .getJson()
+                .contains("NUM Example Co"));
+        Assert.assertEquals("Identical lookups should share DNS queries.", 1, queries.get());
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_11_lookups_with_a_deadline_or_bypassing_the_cache_are_not_coalesced() throws Exception {
+        final AtomicInteger queries = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final NumAPIImpl numAPI = new NumAPIImpl(new DummyDNSServices() {
+            @Override
+            public GetRecordResponse getRecordFromDnsNoCache(final String query, final int timeoutMillis) {
+                queries.incrementAndGet();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread()
+                            .interrupt();
+                }
+                return super.getRecordFromDnsNoCache(query, timeoutMillis);
+            }
+        }, null);
+
+        final CompletableFuture<NumLookupResult> first = numAPI.retrieveNumRecordAsync(numAPI.begin("numexample.com:1", 1000), 1000)
+                .toCompletableFuture();
+        final NumAPIContext withDeadline = numAPI.begin("numexample.com:1", 1000);
+        withDeadline.setDeadlineMillis(30000);
+        final CompletableFuture<NumLookupResult> second = numAPI.retrieveNumRecordAsync(withDeadline, 1000)
+                .toCompletableFuture();
+        final NumAPIContext bypass = numAPI.begin("numexample.com:1", 1000);
+        bypass.setBypassCache(true);
+        final CompletableFuture<NumLookupResult> third = numAPI.retrieveNumRecordAsync(bypass, 1000)
+                .toCompletableFuture();
+        release.countDown();
+
+        first.get(60, TimeUnit.SECONDS);
+        second.get(60, TimeUnit.SECONDS);
+        third.get(60, TimeUnit.SECONDS);
+        Assert.assertEquals("Each lookup should make its own DNS query.", 3, queries.get());
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_12_unused_zone_distribution_probes_are_cached() throws Exception {
+        final List<String> names = new CopyOnWriteArrayList<>();
+        final AtomicBoolean distributed = new AtomicBoolean();
+        final NumAPIImpl numAPI = new NumAPIImpl(new DummyDNSServices() {
+            @Override
+            public GetRecordResponse getRecordFromDnsNoCache(final String query, final int timeoutMillis) {
+                names.add(query);
+                // There is no Zone Distribution Record until the second lookup.
+                if (query.startsWith("1._john.smith.e._num.") && !distributed.get()) {
+                    return new GetRecordResponse(false, new Record[]{});
+                }
+                return super.getRecordFromDnsNoCache(query, timeoutMillis);
+            }
+        }, null);
+        // The dummy records have a TTL of 0
+        numAPI.setRecordCacheTtlBounds(60, 3600);
+        numAPI.setZoneDistributionProbeBudget(3);
+        final String probed = new EmailLookupGenerator("john.smith@dist1.email.com").getDistributedIndependentLocation(1, 1);
+
+        try {
+            numAPI.retrieveNumRecordAsync(numAPI.begin("john.smith@dist1.email.com:1", 1000), 1000)
+                    .toCompletableFuture()
+                    .get(60, TimeUnit.SECONDS);
+        } catch (final ExecutionException e) {
+            // There is no record yet.
+        }
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (!names.contains(probed) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+
+        distributed.set(true);
+        final NumLookupResult result = numAPI.retrieveNumRecordAsync(numAPI.begin("john.smith@dist1.email.com:1", 1000), 1000)
+                .toCompletableFuture()
+                .get(60, TimeUnit.SECONDS);
+
+        Assert.assertTrue("Missing expected value.", result.getJson()
+                .contains("NUM Example Co"));
+        Assert.assertEquals("The first lookup's speculative query should be reused.", 1, names.stream()
+                .filter(probed::equals)
+                .count());
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_13_cancelling_every_duplicate_in_a_batch_cancels_the_lookup() throws Exception {
+        NumProtocolSupport.init();
+        final AtomicInteger queries = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final NumAPIImpl numAPI = new NumAPIImpl(new DummyDNSServices() {
+            @Override
+            public GetRecordResponse getRecordFromDnsNoCache(final String query, final int timeoutMillis) {
+                if (queries.incrementAndGet() == 1) {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread()
+                                .interrupt();
+                    }
+                }
+                return super.getRecordFromDnsNoCache(query, timeoutMillis);
+            }
+        }, null);
+        numAPI.setMaxBatchLookups(1);
+        final List<URL> addresses = Arrays.asList(NumProtocolSupport.toUrl("numexample.com:1"), NumProtocolSupport.toUrl("NUMEXAMPLE.COM:1/"),
+                NumProtocolSupport.toUrl("hosted-numexample.com:1"));
+
+        final List<CompletionStage<NumLookupResult>> results = numAPI.retrieveNumRecords(addresses, 1000);
+        final long giveUp = System.currentTimeMillis() + 5000;
+        while (queries.get() == 0 && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(10);
+        }
+
+        results.get(0)
+                .toCompletableFuture()
+                .cancel(true);
+        Assert.assertFalse("The duplicate should still be waiting.", results.get(1)
+                .toCompletableFuture()
+                .isDone());
+        results.get(1)
+                .toCompletableFuture()
+                .cancel(true);
+
+        // The blocked DNS query is still waiting, so the next lookup can only run if the permit was released.
+        Assert.assertEquals(NumAPICallbacks.Location.HOSTED, results.get(2)
+                .toCompletableFuture()
+                .get(5, TimeUnit.SECONDS)
+                .getLocation());
+        release.countDown();
+        numAPI.shutdown();
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.api;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.num.numlib.exc.NumLookupTimeoutException;
+import uk.num.numlib.exc.NumNoRecordAvailableException;
+import uk.num.numlib.internal.ctx.NumAPIContextBase;
+import uk.num.numlib.internal.dns.DummyDNSServices;
+import uk.num.numlib.util.EmailLookupGenerator;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NumAPICacheTest {
+
+    private final AtomicInteger queries = new AtomicInteger();
+
+    private final AtomicBoolean failing = new AtomicBoolean();
+
+    private final DummyDNSServices countingDnsServices = new DummyDNSServices() {
+        @Override
+        public GetRecordResponse getRecordFromDnsNoCache(final String query, final int timeoutMillis) {
+            queries.incrementAndGet();
+            if (failing.get()) {
+                return null;
+            }
+            return super.getRecordFromDnsNoCache(query, timeoutMillis);
+        }
+    };
+
+    private NumLookupResult lookup(final NumAPIImpl numAPI, final String numAddress, final boolean bypassCache) throws Exception {
+        final NumAPIContext ctx = numAPI.begin(numAddress, 1000);
+        ctx.setBypassCache(bypassCache);
+        return numAPI.retrieveNumRecordAsync(ctx, 1000, false)
+                .toCompletableFuture()
+                .get(60, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void test_01_records_are_cached() throws Exception {
+        final NumAPIImpl numAPI = new NumAPIImpl(countingDnsServices, null);
+        // The dummy records have a TTL of 0
+        numAPI.setRecordCacheTtlBounds(60, 3600);
+
+        final NumLookupResult first = lookup(numAPI, "numexample.com:1", false);
+        final int queriesForFirstLookup = queries.get();
+        final NumLookupResult second = lookup(numAPI, "numexample.com:1", false);
+
+        Assert.assertEquals(first.getJson(), second.getJson());
+        Assert.assertEquals(NumAPICallbacks.Location.INDEPENDENT, second.getLocation());
+        Assert.assertEquals("The second lookup should use the cache.", queriesForFirstLookup, queries.get());
+
+        lookup(numAPI, "numexample.com:1", true);
+        Assert.assertEquals("Bypassing the cache should query DNS.", queriesForFirstLookup * 2, queries.get());
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_02_records_with_zero_ttl_are_not_cached() throws Exception {
+        final NumAPIImpl numAPI = new NumAPIImpl(countingDnsServices, null);
+
+        lookup(numAPI, "numexample.com:1", false);
+        final int queriesForFirstLookup = queries.get();
+        lookup(numAPI, "numexample.com:1", false);
+
+        Assert.assertEquals(queriesForFirstLookup * 2, queries.get());
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_03_interpreted_results_are_cached() throws Exception {
+        final NumAPIImpl numAPI = new NumAPIImpl(countingDnsServices, null);
+        numAPI.setRecordCacheTtlBounds(60, 3600);
+
+        final NumAPIContext ctx = numAPI.begin("numexample.com:1", 1000);
+        final NumLookupResult first = numAPI.retrieveNumRecordAsync(ctx, 1000)
+                .toCompletableFuture()
+                .get(60, TimeUnit.SECONDS);
+        final int queriesForFirstLookup = queries.get();
+
+        final NumAPICallbacksDefaultHandler handler = new NumAPICallbacksDefaultHandler();
+        final String second = numAPI.retrieveNumRecord(numAPI.begin("numexample.com:1", 1000), handler, 1000)
+                .get(60, TimeUnit.SECONDS);
+
+        Assert.assertEquals(first.getJson(), second);
+        Assert.assertEquals(second, handler.getResult());
+        Assert.assertEquals("The second lookup should use the cached result.", queriesForFirstLookup, queries.get());
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_04_popular_results_are_refreshed_ahead() throws Exception {
+        final NumAPIImpl numAPI = new NumAPIImpl(countingDnsServices, null);
+        numAPI.setRecordCacheTtlBounds(2, 2);
+        numAPI.setRefreshAheadFraction(0.1);
+
+        lookup(numAPI, "numexample.com:1", false);
+        final int queriesForFirstLookup = queries.get();
+        Thread.sleep(500);
+        final NumLookupResult cached = lookup(numAPI, "numexample.com:1", false);
+        Assert.assertEquals(NumAPICallbacks.Location.INDEPENDENT, cached.getLocation());
+
+        // The refresh runs in the background.
+        final long giveUp = System.currentTimeMillis() + 5000;
+        while (queries.get() < queriesForFirstLookup * 2 && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("The result should be refreshed once.", queriesForFirstLookup * 2, queries.get());
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_05_last_good_result_is_served_when_dns_fails() throws Exception {
+        final NumAPIImpl numAPI = new NumAPIImpl(countingDnsServices, null);
+        numAPI.setMaxStaleness(3600);
+        final NumLookupResult good = lookup(numAPI, "numexample.com:1", false);
+        Assert.assertFalse(good.isStale());
+
+        failing.set(true);
+        final NumLookupResult stale = lookup(numAPI, "numexample.com:1", false);
+        Assert.assertTrue(stale.isStale());
+        Assert.assertEquals(good.getJson(), stale.getJson());
+        Assert.assertEquals(NumAPICallbacks.Location.INDEPENDENT, stale.getLocation());
+
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_06_stale_results_can_be_disabled() throws Exception {
+        final NumAPIImpl numAPI = new NumAPIImpl(countingDnsServices, null);
+        numAPI.setMaxStaleness(0);
+        lookup(numAPI, "numexample.com:1", false);
+
+        failing.set(true);
+        try {
+            lookup(numAPI, "numexample.com:1", false);
+            Assert.fail("Expected an exception.");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue("Incorrect exception.", e.getCause() instanceof NumNoRecordAvailableException);
+        }
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_07_redirects_are_remembered() throws Exception {
+        final NumAPIImpl numAPI = new NumAPIImpl(countingDnsServices, null);
+        numAPI.setRecordCacheTtlBounds(60, 3600);
+        numAPI.retrieveNumRecordAsync(numAPI.begin("lookup.root.redirect1.com:1", 1000), 1000)
+                .toCompletableFuture()
+                .get(60, TimeUnit.SECONDS);
+
+        // Different user variables so that the cached result isn't used.
+        final NumAPIContextBase ctx = (NumAPIContextBase) numAPI.begin("lookup.root.redirect1.com:1", 1000);
+        final UserVariable variable = new UserVariable();
+        variable.setKey("a");
+        variable.setValue("b");
+        ctx.setRequiredUserVariables(new UserVariable[]{variable});
+        numAPI.retrieveNumRecordAsync(ctx, 1000)
+                .toCompletableFuture()
+                .get(60, TimeUnit.SECONDS);
+
+        Assert.assertEquals(1, ctx.getRedirectCount());
+        Assert.assertNull("The redirect should not be followed again.", ctx.getRedirectTarget());
+        Assert.assertEquals("redirected.1._num.lookup.root.redirect1.com.", ctx.getModuleDNSQueries()
+                .getIndependentRecordLocation());
+        Assert.assertEquals("Redirects should not change the queries for other lookups.", "1._num.lookup.root.redirect1.com.",
+                ((NumAPIContextBase) numAPI.begin("lookup.root.redirect1.com:1", 1000)).getModuleDNSQueries()
+                        .getIndependentRecordLocation());
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_08_zone_distribution_levels_are_remembered_per_domain() throws Exception {
+        final String distributed = new EmailLookupGenerator("jane.doe@dist1.email.com").getDistributedIndependentLocation(1, 1);
+        final List<String> names = new CopyOnWriteArrayList<>();
+        final NumAPIImpl numAPI = new NumAPIImpl(new DummyDNSServices() {
+            @Override
+            public GetRecordResponse getRecordFromDnsNoCache(final String query, final int timeoutMillis) {
+                names.add(query);
+                if (query.equals(distributed)) {
+                    return super.getRecordFromDnsNoCache("1._john.smith.3.e._num.dist1.email.com", timeoutMillis);
+                }
+                return super.getRecordFromDnsNoCache(query, timeoutMillis);
+            }
+        }, null);
+        numAPI.setRecordCacheTtlBounds(60, 3600);
+        lookup(numAPI, "john.smith@dist1.email.com:1", false);
+        names.clear();
+
+        final NumLookupResult result = lookup(numAPI, "jane.doe@dist1.email.com:1", false);
+
+        Assert.assertEquals(NumAPICallbacks.Location.INDEPENDENT, result.getLocation());
+        Assert.assertEquals("Only the distributed name should be queried.", 1, names.size());
+        Assert.assertEquals(distributed, names.get(0));
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_09_hosted_location_is_checked_first_for_hosted_domains() throws Exception {
+        final NumAPIImpl numAPI = new NumAPIImpl(countingDnsServices, null);
+        lookup(numAPI, "hosted-numexample.com:1", true);
+        final int queriesByDefault = queries.get();
+        queries.set(0);
+        lookup(numAPI, "hosted-numexample.com:1", true);
+        Assert.assertEquals("The INDEPENDENT location should be checked first by default.", queriesByDefault, queries.get());
+
+        numAPI.setHostedFirstSeconds(300);
+        queries.set(0);
+        final NumLookupResult first = lookup(numAPI, "hosted-numexample.com:1", false);
+        Assert.assertEquals(NumAPICallbacks.Location.HOSTED, first.getLocation());
+        final int queriesForBothLocations = queries.get();
+
+        queries.set(0);
+        final NumLookupResult second = lookup(numAPI, "hosted-numexample.com:1", true);
+        Assert.assertEquals(NumAPICallbacks.Location.HOSTED, second.getLocation());
+        Assert.assertEquals("The INDEPENDENT location should be skipped.", queriesForBothLocations - 1, queries.get());
+
+        numAPI.setHostedFirstSeconds(0);
+        queries.set(0);
+        lookup(numAPI, "hosted-numexample.com:1", true);
+        Assert.assertEquals(queriesForBothLocations, queries.get());
+        numAPI.shutdown();
+    }
+
+    @Test
+    public void test_10_bypass_cache_lookup_that_times_out_is_not_served_from_the_cache() throws Exception {
+        final AtomicBoolean blocked = new AtomicBoolean();
+        final CountDownLatch release = new CountDownLatch(1);
+        final NumAPIImpl numAPI = new NumAPIImpl(new DummyDNSServices() {
+            @Override
+            public GetRecordResponse getRecordFromDnsNoCache(final String query, final int timeoutMillis) {
+                if (blocked.get()) {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread()
+                                .interrupt();
+                    }
+                }
+                return super.getRecordFromDnsNoCache(query, timeoutMillis);
+            }
+        }, null);
+        // Default staleness settings, with a result that has not expired.
+        numAPI.setRecordCacheTtlBounds(60, 3600);
+        lookup(numAPI, "numexample.com:1", false);
+
+        blocked.set(true);
+        final NumAPIContext ctx = numAPI.begin("numexample.com:1", 1000);
+        ctx.setBypassCache(true);
+        ctx.setDeadlineMillis(100);
+        try {
+            numAPI.retrieveNumRecordAsync(ctx, 1000, false)
+                    .toCompletableFuture()
+                    .get(60, TimeUnit.SECONDS);
+            Assert.fail("Expected an exception.");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue("Incorrect exception.", e.getCause() instanceof NumLookupTimeoutException);
+        }
+        Assert.assertFalse(ctx.isStale());
+        release.countDown();
+        numAPI.shutdown();
+    }
+}
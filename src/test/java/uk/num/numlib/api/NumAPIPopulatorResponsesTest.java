@@ -25,6 +25,7 @@ import uk.num.numlib.internal.util.PopulatorRetryConfig;
 
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Log4j2
 public class NumAPIPopulatorResponsesTest {
@@ -136,6 +137,35 @@ public class NumAPIPopulatorResponsesTest {
         runQuery(numId, 60);
     }
 
+    /**
+     * The populator asks us to retry, then returns a record on the first retry. The lookup should finish without
+     * waiting for the remaining retries.
+     */
+    @Test
+    public void test_07_populator_retry_stops_at_first_record() throws Exception {
+        final AtomicInteger populatorQueries = new AtomicInteger();
+        final NumAPI numAPI = new NumAPIImpl(new DummyDNSServices() {
+            @Override
+            public GetRecordResponse getRecordFromDnsNoCache(final String query, final int timeoutMillis) {
+                if (query.startsWith("1._populator.response.retry.com.populator.num.net")) {
+                    final String response = (populatorQueries.incrementAndGet() == 1) ? "1._populator.response.1.com.populator.num.net" : "1._populator.response.txt.com.populator.num.net";
+                    return super.getRecordFromDnsNoCache(response, timeoutMillis);
+                }
+                return super.getRecordFromDnsNoCache(query, timeoutMillis);
+            }
+        }, "0");
+        final NumAPIContext ctx = numAPI.begin("populator.response.retry.com:1", 1000);
+        ctx.setPopulatorQueryRequired(true);
+
+        final String json = numAPI.retrieveNumRecord(ctx, new TestCallbackHandlerExpectingSuccess(), 1000)
+                .get(60, TimeUnit.SECONDS);
+
+        Assert.assertNotNull(json);
+        Assert.assertEquals(NumAPICallbacks.Location.POPULATOR, ctx.getLocation());
+        Assert.assertEquals(2, populatorQueries.get());
+        numAPI.shutdown();
+    }
+
     public void runQuery(final String numId, final int timeoutSeconds) throws Exception {
         //
         // Create the NumAPI Object
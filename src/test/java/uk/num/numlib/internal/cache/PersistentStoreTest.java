@@ -0,0 +1,314 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.cache;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import uk.num.numlib.api.NumAPICallbacks;
+import uk.num.numlib.api.NumLookupResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+public class PersistentStoreTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private File directory;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("num-cache")
+                .toFile();
+        file = new File(directory, "cache.dat");
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File generation : files) {
+                generation.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void test_01_entries_survive_a_restart() throws Exception {
+        final List<Object> key = Arrays.asList(1, "numexample.com", null, true);
+        final PersistentStore store = PersistentStore.open(file, scheduler);
+        final RecordCache recordCache = new RecordCache(0, 3600, 300);
+        final ResultCache resultCache = new ResultCache();
+        recordCache.setPersistentStore(store);
+        resultCache.setPersistentStore(store);
+        recordCache.put("1._num.numexample.com", new CachedRecord("@n=1;", true, 60));
+        recordCache.putNegative("1._num.nothing.example", 60);
+        resultCache.put(key, new NumLookupResult("{}", NumAPICallbacks.Location.INDEPENDENT, true, false), System.nanoTime() + TimeUnit.MINUTES.toNanos(1));
+        store.close();
+
+        final PersistentStore reopened = PersistentStore.open(file, scheduler);
+        final RecordCache restoredRecords = new RecordCache(0, 3600, 300);
+        final ResultCache restoredResults = new ResultCache();
+        reopened.load(restoredRecords, restoredResults);
+        reopened.close();
+
+        final CachedRecord record = restoredRecords.get("1._num.numexample.com");
+        Assert.assertNotNull(record);
+        Assert.assertEquals("@n=1;", record.getNumRecord());
+        Assert.assertTrue(record.isSigned());
+        Assert.assertTrue(restoredRecords.get("1._num.nothing.example")
+                .isNegative());
+        final ResultCache.Entry entry = restoredResults.get(key);
+        Assert.assertNotNull(entry);
+        Assert.assertEquals("{}", entry.getResult()
+                .getJson());
+        Assert.assertEquals(NumAPICallbacks.Location.INDEPENDENT, entry.getResult()
+                .getLocation());
+    }
+
+    @Test
+    public void test_02_compaction_keeps_the_latest_entries() throws Exception {
+        final PersistentStore store = PersistentStore.open(file, scheduler);
+        final RecordCache recordCache = new RecordCache(0, 3600, 300);
+        recordCache.setPersistentStore(store);
+        for (int i = 0; i < 100; i++) {
+            recordCache.put("1._num.numexample.com", new CachedRecord("@n=" + i + ";", false, 60));
+        }
+        store.compact();
+        store.close();
+
+        final PersistentStore reopened = PersistentStore.open(file, scheduler);
+        final RecordCache restored = new RecordCache(0, 3600, 300);
+        reopened.load(restored, new ResultCache());
+        reopened.close();
+
+        Assert.assertEquals("@n=99;", restored.get("1._num.numexample.com")
+                .getNumRecord());
+    }
+
+    @Test
+    public void test_03_invalid_files_are_replaced() throws Exception {
+        try (final FileOutputStream out = new FileOutputStream(generation(1))) {
+            out.write("not a cache file".getBytes(StandardCharsets.UTF_8));
+        }
+
+        final PersistentStore store = PersistentStore.open(file, scheduler);
+        final RecordCache recordCache = new RecordCache(0, 3600, 300);
+        store.load(recordCache, new ResultCache());
+        recordCache.setPersistentStore(store);
+        recordCache.put("1._num.numexample.com", new CachedRecord("@n=1;", false, 60));
+        store.close();
+
+        final PersistentStore reopened = PersistentStore.open(file, scheduler);
+        final RecordCache restored = new RecordCache(0, 3600, 300);
+        reopened.load(restored, new ResultCache());
+        reopened.close();
+
+        Assert.assertNotNull(restored.get("1._num.numexample.com"));
+    }
+
+    @Test
+    public void test_04_a_file_is_only_used_by_one_store() throws Exception {
+        final PersistentStore store = PersistentStore.open(file, scheduler);
+        try {
+            PersistentStore.open(file, scheduler);
+            Assert.fail("The file should be locked.");
+        } catch (final IOException e) {
+            // Expected
+        }
+        store.close();
+
+        PersistentStore.open(file, scheduler)
+                .close();
+    }
+
+    @Test
+    public void test_05_entries_with_invalid_lengths_are_skipped() throws Exception {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try (final DataOutputStream out = new DataOutputStream(payload)) {
+            // A record whose key length is far longer than the entry.
+            out.writeByte(1);
+            out.writeLong(Long.MAX_VALUE);
+            out.writeLong(Long.MAX_VALUE);
+            out.writeInt(Integer.MAX_VALUE);
+            out.writeInt(0);
+        }
+        writeGeneration(payload.toByteArray());
+
+        final PersistentStore store = PersistentStore.open(file, scheduler);
+        final RecordCache recordCache = new RecordCache(0, 3600, 300);
+        store.load(recordCache, new ResultCache());
+        recordCache.setPersistentStore(store);
+        recordCache.put("1._num.numexample.com", new CachedRecord("@n=1;", false, 60));
+        store.compact();
+        store.close();
+
+        final PersistentStore reopened = PersistentStore.open(file, scheduler);
+        final RecordCache restored = new RecordCache(0, 3600, 300);
+        reopened.load(restored, new ResultCache());
+        reopened.close();
+
+        Assert.assertEquals("@n=1;", restored.get("1._num.numexample.com")
+                .getNumRecord());
+    }
+
+    @Test
+    public void test_06_compaction_writes_a_new_generation() throws Exception {
+        final PersistentStore store = PersistentStore.open(file, scheduler);
+        final RecordCache recordCache = new RecordCache(0, 3600, 300);
+        recordCache.setPersistentStore(store);
+        recordCache.put("1._num.numexample.com", new CachedRecord("@n=1;", false, 60));
+        store.compact();
+        recordCache.put("2._num.numexample.com", new CachedRecord("@n=2;", false, 60));
+        store.close();
+
+        Assert.assertFalse(generation(1).exists());
+        Assert.assertTrue(generation(2).exists());
+        final PersistentStore reopened = PersistentStore.open(file, scheduler);
+        final RecordCache restored = new RecordCache(0, 3600, 300);
+        reopened.load(restored, new ResultCache());
+        reopened.close();
+
+        Assert.assertNotNull(restored.get("1._num.numexample.com"));
+        Assert.assertNotNull(restored.get("2._num.numexample.com"));
+    }
+
+    @Test
+    public void test_07_a_full_file_is_compacted_in_the_background() throws Exception {
+        final PersistentStore store = PersistentStore.open(file, scheduler);
+        final RecordCache recordCache = new RecordCache(0, 3600, 300);
+        recordCache.setPersistentStore(store);
+        final StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 1024; i++) {
+            padding.append('x');
+        }
+        int i = 0;
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (!generation(2).exists() && System.currentTimeMillis() < deadline) {
+            recordCache.put("1._num.numexample.com", new CachedRecord("@n=" + i++ + ";" + padding, false, 60));
+        }
+        Assert.assertTrue("The file should have been compacted.", generation(2).exists());
+        recordCache.put("1._num.numexample.com", new CachedRecord("@n=latest;", false, 60));
+        store.close();
+
+        final PersistentStore reopened = PersistentStore.open(file, scheduler);
+        final RecordCache restored = new RecordCache(0, 3600, 300);
+        reopened.load(restored, new ResultCache());
+        reopened.close();
+
+        Assert.assertEquals("@n=latest;", restored.get("1._num.numexample.com")
+                .getNumRecord());
+    }
+
+    @Test
+    public void test_08_partly_written_entries_are_skipped() throws Exception {
+        final PersistentStore store = PersistentStore.open(file, scheduler);
+        final RecordCache recordCache = new RecordCache(0, 3600, 300);
+        recordCache.setPersistentStore(store);
+        recordCache.put("1._num.numexample.com", new CachedRecord("@n=1;", false, 60));
+        recordCache.put("2._num.numexample.com", new CachedRecord("@n=2;", false, 60));
+        store.close();
+
+        // Damage the payload of the first entry, as if it didn't reach the disk before a crash.
+        try (final RandomAccessFile raf = new RandomAccessFile(generation(1), "rw")) {
+            // The file header, the entry length and checksum, and the payload header come before the key.
+            raf.seek(8 + 8 + 21);
+            raf.writeByte('X');
+        }
+
+        final PersistentStore reopened = PersistentStore.open(file, scheduler);
+        final RecordCache restored = new RecordCache(0, 3600, 300);
+        reopened.load(restored, new ResultCache());
+        reopened.close();
+
+        Assert.assertNull(restored.get("1._num.numexample.com"));
+        Assert.assertEquals("@n=2;", restored.get("2._num.numexample.com")
+                .getNumRecord());
+    }
+
+    @Test
+    public void test_09_files_are_private() throws Exception {
+        Assume.assumeTrue(directory.toPath()
+                .getFileSystem()
+                .supportedFileAttributeViews()
+                .contains("posix"));
+        final PersistentStore store = PersistentStore.open(file, scheduler);
+        store.compact();
+        store.close();
+        Assert.assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(file.toPath()));
+        Assert.assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(generation(2).toPath()));
+
+        Files.setPosixFilePermissions(generation(2).toPath(), PosixFilePermissions.fromString("rw-rw-rw-"));
+        try {
+            PersistentStore.open(file, scheduler);
+            Assert.fail("A file that other users can write should be refused.");
+        } catch (final IOException e) {
+            // Expected
+        }
+
+        Files.setPosixFilePermissions(generation(2).toPath(), PosixFilePermissions.fromString("rw-------"));
+        Files.setPosixFilePermissions(directory.toPath(), PosixFilePermissions.fromString("rwxrwxrwx"));
+        try {
+            PersistentStore.open(file, scheduler);
+            Assert.fail("A directory that other users can write should be refused.");
+        } catch (final IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Write the first generation of the data file with one entry.
+     *
+     * @param payload the entry payload
+     * @throws IOException on error
+     */
+    private void writeGeneration(final byte[] payload) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        try (final DataOutputStream out = new DataOutputStream(new FileOutputStream(generation(1)))) {
+            out.writeInt(0x4E554D43);
+            out.writeInt(2);
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+        }
+    }
+
+    private File generation(final int number) {
+        return new File(file.getPath() + "." + number);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RecordCacheTest {
+
+    @Test
+    public void test_01_query_names_are_normalised() {
+        final RecordCache cache = new RecordCache(0, 3600, 300);
+        cache.put("1._num.NumExample.com.", new CachedRecord("@n=1;", true, 60));
+
+        final CachedRecord record = cache.get("1._num.numexample.com");
+        Assert.assertNotNull(record);
+        Assert.assertEquals("@n=1;", record.getNumRecord());
+        Assert.assertTrue(record.isSigned());
+    }
+
+    @Test
+    public void test_02_ttl_is_clamped() throws Exception {
+        final RecordCache cache = new RecordCache(60, 3600, 300);
+        cache.put("zero.ttl", new CachedRecord("@n=1;", false, 0));
+        Assert.assertNotNull("The minimum TTL should apply.", cache.get("zero.ttl"));
+
+        cache.setTtlBounds(0, 0);
+        cache.put("disabled", new CachedRecord("@n=1;", false, 60));
+        Assert.assertNull("A maximum TTL of 0 disables the cache.", cache.get("disabled"));
+
+        cache.setTtlBounds(60, 0);
+        cache.put("disabled.with.minimum", new CachedRecord("@n=1;", false, 60));
+        Assert.assertNull("A maximum TTL of 0 disables the cache whatever the minimum.", cache.get("disabled.with.minimum"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_03_invalid_bounds() {
+        new RecordCache(10, 5, 300);
+    }
+
+    @Test
+    public void test_04_negative_ttl_is_capped() {
+        final RecordCache cache = new RecordCache(60, 3600, 300);
+        cache.putNegative("1._num.nothing.example.", 86400);
+
+        final CachedRecord record = cache.get("1._num.nothing.example");
+        Assert.assertNotNull(record);
+        Assert.assertTrue(record.isNegative());
+        Assert.assertEquals(300, record.getTtlSeconds());
+
+        cache.putNegative("zero.ttl", 0);
+        Assert.assertNull("The minimum TTL should not apply to negative answers.", cache.get("zero.ttl"));
+
+        cache.setMaxNegativeTtl(0);
+        cache.putNegative("disabled", 60);
+        Assert.assertNull("A maximum negative TTL of 0 disables negative caching.", cache.get("disabled"));
+    }
+}
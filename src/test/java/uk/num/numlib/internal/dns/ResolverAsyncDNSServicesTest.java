@@ -0,0 +1,123 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.dns;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xbill.DNS.*;
+import uk.num.numlib.dns.DNSServices;
+import uk.num.numlib.dns.DNSServicesDefaultImpl;
+
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+
+public class ResolverAsyncDNSServicesTest {
+
+    private static final String ALIAS = "1._num.alias.numexample.com.";
+
+    private static final String TARGET = "1._num.target.numexample.com.";
+
+    private static final String RECORD = "@n=1;o(n=NUM Example Co;c[t=441270123456;tw=numexampletweets])";
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @AfterClass
+    public static void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void test_01_cname_chain_in_one_response_matches_default_impl() throws Exception {
+        compareWithDefaultImpl(new CnameResolver(true));
+    }
+
+    @Test
+    public void test_02_cname_target_queried_separately_matches_default_impl() throws Exception {
+        compareWithDefaultImpl(new CnameResolver(false));
+    }
+
+    private static void compareWithDefaultImpl(final Resolver resolver) throws Exception {
+        final TXTResponse async = new ResolverAsyncDNSServices(resolver, scheduler).getRecordFromDns(ALIAS, 1000)
+                .get();
+        final DNSServices.GetRecordResponse blocking = new DNSServicesDefaultImpl(resolver).getRecordFromDnsNoCache(ALIAS, 1000);
+
+        Assert.assertFalse(async.isFailure());
+        Assert.assertEquals(Arrays.asList(RECORD), contents(async.getRecords()));
+        Assert.assertEquals(contents(blocking.getRecords()), contents(async.getRecords()));
+    }
+
+    private static List<String> contents(final Record[] records) {
+        return Arrays.stream(records)
+                .map(r -> String.join("", ((TXTRecord) r).getStrings()))
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Answers TXT queries for ALIAS with a CNAME to TARGET, which has a NUM record and an SPF record.
+     */
+    private static final class CnameResolver extends SimpleResolver {
+
+        /**
+         * true to include the TARGET records when answering for ALIAS, as recursive resolvers usually do.
+         */
+        private final boolean includeChain;
+
+        CnameResolver(final boolean includeChain) throws UnknownHostException {
+            super("127.0.0.1");
+            this.includeChain = includeChain;
+        }
+
+        @Override
+        public Message send(final Message query) {
+            final Message response = new Message(query.getHeader()
+                    .getID());
+            response.getHeader()
+                    .setFlag(Flags.QR);
+            final Record question = query.getQuestion();
+            response.addRecord(question, Section.QUESTION);
+            try {
+                final Name alias = Name.fromString(ALIAS);
+                final Name target = Name.fromString(TARGET);
+                final boolean aliasQuery = question.getName()
+                        .equals(alias);
+                if (aliasQuery) {
+                    response.addRecord(new CNAMERecord(alias, DClass.IN, 300, target), Section.ANSWER);
+                }
+                if (!aliasQuery || includeChain) {
+                    response.addRecord(new TXTRecord(target, DClass.IN, 300, "v=spf1 -all"), Section.ANSWER);
+                    response.addRecord(new TXTRecord(target, DClass.IN, 300, RECORD), Section.ANSWER);
+                }
+            } catch (final TextParseException e) {
+                throw new IllegalStateException(e);
+            }
+            return response;
+        }
+
+        @Override
+        public CompletionStage<Message> sendAsync(final Message query) {
+            return CompletableFuture.completedFuture(send(query));
+        }
+    }
+}
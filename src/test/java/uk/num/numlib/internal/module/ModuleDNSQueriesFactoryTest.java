@@ -78,4 +78,22 @@ public class ModuleDNSQueriesFactoryTest {
         Assert.assertNotSame("Should be different objects.", m3, m4);
     }
 
-}
\ No newline at end of file
+    @Test(expected = IllegalStateException.class)
+    public void getInstance8() throws Exception {
+        moduleFactory.getInstance(1, "numexample.com")
+                .redirectIndependentPath("/sales");
+    }
+
+    @Test
+    public void getInstance9() throws Exception {
+        final ModuleDNSQueries shared = moduleFactory.getInstance(1, "numexample.com");
+        final ModuleDNSQueries copy = shared.copy();
+        copy.redirectIndependentPath("/sales");
+
+        Assert.assertTrue("Shared objects should be frozen.", shared.isFrozen());
+        Assert.assertFalse("Copies should not be frozen.", copy.isFrozen());
+        Assert.assertEquals("Bad ModuleDNSQueries field.", "sales.1._num.numexample.com.", copy.getIndependentRecordLocation());
+        Assert.assertEquals("The shared object should not change.", "1._num.numexample.com.", shared.getIndependentRecordLocation());
+    }
+
+}
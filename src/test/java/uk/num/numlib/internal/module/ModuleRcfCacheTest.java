@@ -0,0 +1,223 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.module;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import uk.num.numlib.exc.NumBadRecordException;
+import uk.num.numlib.internal.modl.ModlServices;
+import uk.num.numlib.internal.modl.NumLookupRedirect;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ModuleRcfCacheTest {
+
+    private static final String RCF = "*class(*id=c;*name=contacts;*superclass=map)";
+
+    private final AtomicInteger fetches = new AtomicInteger();
+
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private HttpServer server;
+
+    private String url;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/1/rcf.txt", exchange -> {
+            if ("\"v1\"".equals(exchange.getRequestHeaders()
+                    .getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                fetches.incrementAndGet();
+                final byte[] body = RCF.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders()
+                        .add("ETag", "\"v1\"");
+                exchange.sendResponseHeaders(200, body.length);
+                try (final OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress()
+                .getPort() + "/1/rcf.txt";
+        directory = Files.createTempDirectory("num-module-cache")
+                .toFile();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void test_01_rcf_is_fetched_once() {
+        final ModuleRcfCache cache = new ModuleRcfCache(executor, directory);
+
+        Assert.assertEquals(RCF, cache.get(url, 1000));
+        Assert.assertEquals(RCF, cache.get(url, 1000));
+        Assert.assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void test_02_stale_rcf_is_revalidated_in_the_background() throws Exception {
+        final ModuleRcfCache cache = new ModuleRcfCache(executor, directory);
+        cache.get(url, 1000);
+        cache.setRevalidateAfterMillis(0);
+
+        Assert.assertEquals(RCF, cache.get(url, 1000));
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(done::countDown);
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals(1, fetches.get());
+        Assert.assertEquals(1, notModified.get());
+    }
+
+    @Test
+    public void test_03_rcf_is_loaded_from_disk() {
+        new ModuleRcfCache(executor, directory).get(url, 1000);
+        server.stop(0);
+
+        Assert.assertEquals(RCF, new ModuleRcfCache(executor, directory).get(url, 1000));
+        Assert.assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void test_04_unavailable_rcf_returns_null() {
+        final ModuleRcfCache cache = new ModuleRcfCache(executor, null);
+        server.stop(0);
+
+        Assert.assertNull(cache.get(url, 1000));
+    }
+
+    @Test
+    public void test_05_get_uses_the_prefetched_rcf() throws Exception {
+        final ModuleRcfCache cache = new ModuleRcfCache(executor, null);
+        cache.prefetch(url, 1000);
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(done::countDown);
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        server.stop(0);
+
+        Assert.assertEquals(RCF, cache.get(url, 1000));
+        Assert.assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void test_06_get_runs_a_queued_prefetch() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread()
+                        .interrupt();
+            }
+        });
+        final ModuleRcfCache cache = new ModuleRcfCache(executor, null);
+        cache.prefetch(url, 1000);
+
+        Assert.assertEquals(RCF, cache.get(url, 1000));
+        release.countDown();
+        Assert.assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void test_07_rcf_is_not_loaded_from_a_directory_that_others_can_write() throws Exception {
+        Assume.assumeTrue(directory.toPath()
+                .getFileSystem()
+                .supportedFileAttributeViews()
+                .contains("posix"));
+        new ModuleRcfCache(executor, directory).get(url, 1000);
+        Files.setPosixFilePermissions(directory.toPath(), PosixFilePermissions.fromString("rwxrwxrwx"));
+        server.stop(0);
+
+        Assert.assertNull(new ModuleRcfCache(executor, directory).get(url, 1000));
+    }
+
+    @Test
+    public void test_08_new_directory_is_private() throws Exception {
+        Assume.assumeTrue(directory.toPath()
+                .getFileSystem()
+                .supportedFileAttributeViews()
+                .contains("posix"));
+        final File subdirectory = new File(directory, "rcf");
+        new ModuleRcfCache(executor, subdirectory).get(url, 1000);
+
+        Assert.assertEquals(PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(subdirectory.toPath()));
+        final File[] files = subdirectory.listFiles();
+        Assert.assertNotNull(files);
+        Assert.assertEquals(1, files.length);
+        Assert.assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(files[0].toPath()));
+        files[0].delete();
+        subdirectory.delete();
+    }
+
+    @Test
+    public void test_09_cached_rcf_is_interpreted_like_a_load_instruction() throws Exception {
+        final ModuleRcfCache cache = new ModuleRcfCache(executor, null);
+        final ModlServices modlServices = new ModlServices();
+        final String[] records = {"@n=1;c(t=441270123456;tw=numexampletweets)", "@n=1;c(t=441270123456);@R=`numexample.com:1/redirected`"};
+
+        for (final String record : records) {
+            final String loaded = interpret(modlServices, ModuleRcfCache.loadInstruction(url) + record);
+            final String cached = interpret(modlServices, cache.getModl(url, 1000) + record);
+
+            Assert.assertEquals(loaded, cached);
+        }
+        Assert.assertTrue("The RCF should be applied.", interpret(modlServices, cache.getModl(url, 1000) + records[0]).contains("contacts"));
+    }
+
+    private static String interpret(final ModlServices modlServices, final String modl) throws NumBadRecordException {
+        try {
+            return modlServices.interpretNumRecord(modl, 10);
+        } catch (final NumLookupRedirect e) {
+            return "Redirect: " + e.getRedirect();
+        }
+    }
+}
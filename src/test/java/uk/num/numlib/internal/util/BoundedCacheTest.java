@@ -0,0 +1,138 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BoundedCacheTest {
+
+    private final AtomicLong nanos = new AtomicLong();
+
+    private <K, V> BoundedCache<K, V> cache(final long maximumSize) {
+        return new BoundedCache<>(maximumSize, 10, TimeUnit.SECONDS, (k, v) -> 1, nanos::get);
+    }
+
+    @Test
+    public void test_01_entries_expire() {
+        final BoundedCache<String, String> cache = cache(100);
+        final String value1 = "value1";
+        cache.put("key1", value1);
+        Assert.assertSame(value1, cache.get("key1"));
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        Assert.assertNull("The item should have expired.", cache.get("key1"));
+
+        final BoundedCache.Statistics statistics = cache.getStatistics();
+        Assert.assertEquals(1, statistics.getHitCount());
+        Assert.assertEquals(1, statistics.getMissCount());
+        Assert.assertEquals(1, statistics.getExpiredCount());
+        Assert.assertEquals(0, statistics.getSize());
+    }
+
+    @Test
+    public void test_02_per_entry_ttl_and_clean_up() {
+        final BoundedCache<String, String> cache = cache(100);
+        cache.put("short", "1", 1, TimeUnit.SECONDS);
+        cache.put("default", "2");
+        cache.put("zero", "3", 0, TimeUnit.SECONDS);
+        Assert.assertEquals("Items with a TTL of 0 are not cached.", 2, cache.size());
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        cache.cleanUp();
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals("2", cache.get("default"));
+    }
+
+    @Test
+    public void test_03_size_is_bounded() {
+        final BoundedCache<Integer, Integer> cache = cache(100);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+        }
+        Assert.assertTrue(cache.size() <= 100);
+        Assert.assertEquals(1000 - cache.size(), cache.getStatistics()
+                .getEvictionCount());
+    }
+
+    @Test
+    public void test_04_popular_entries_survive_a_scan() {
+        final BoundedCache<String, String> cache = cache(100);
+        for (int i = 0; i < 50; i++) {
+            cache.put("popular-" + i, "value");
+        }
+        for (int n = 0; n < 10; n++) {
+            for (int i = 0; i < 50; i++) {
+                cache.get("popular-" + i);
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            cache.put("scan-" + i, "value");
+        }
+        for (int i = 0; i < 50; i++) {
+            Assert.assertNotNull("Popular entries should not be evicted by a scan.", cache.get("popular-" + i));
+        }
+    }
+
+    @Test
+    public void test_05_weight_is_bounded() {
+        final BoundedCache<String, String> cache = new BoundedCache<>(100, 10, TimeUnit.SECONDS, (k, v) -> v.length(), nanos::get);
+        cache.put("too-heavy", new String(new char[101]));
+        Assert.assertNull("Items heavier than the maximum weight are not cached.", cache.get("too-heavy"));
+
+        for (int i = 0; i < 20; i++) {
+            cache.put("key-" + i, "0123456789");
+        }
+        Assert.assertTrue(cache.getStatistics()
+                .getWeight() <= 100);
+    }
+
+    @Test
+    public void test_06_put_if_absent() {
+        final BoundedCache<String, String> cache = cache(100);
+        Assert.assertNull(cache.putIfAbsent("key", "first"));
+        Assert.assertEquals("first", cache.putIfAbsent("key", "second"));
+        Assert.assertEquals("first", cache.get("key"));
+    }
+
+    @Test
+    public void test_07_concurrent_writes_stay_bounded() throws Exception {
+        final BoundedCache<Integer, Integer> cache = cache(100);
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 10_000;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    cache.put(offset + i, i);
+                    cache.get(offset + i / 2);
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        final BoundedCache.Statistics statistics = cache.getStatistics();
+        Assert.assertTrue("Too many entries: " + cache.size(), cache.size() <= 100);
+        Assert.assertEquals(cache.size(), statistics.getWeight());
+        Assert.assertEquals(80_000 - cache.size(), statistics.getEvictionCount());
+    }
+}
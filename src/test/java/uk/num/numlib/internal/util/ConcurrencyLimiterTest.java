@@ -0,0 +1,99 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConcurrencyLimiterTest {
+
+    @Test
+    public void test_01_limits_tasks_in_progress() throws Exception {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2);
+        final AtomicInteger started = new AtomicInteger();
+        final List<CompletableFuture<Integer>> tasks = new ArrayList<>();
+        final List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            final CompletableFuture<Integer> task = new CompletableFuture<>();
+            tasks.add(task);
+            results.add(limiter.submit(() -> {
+                started.incrementAndGet();
+                return task;
+            }));
+        }
+        Assert.assertEquals(2, started.get());
+        Assert.assertEquals(3, limiter.getQueueDepth());
+
+        tasks.get(0)
+                .complete(0);
+        Assert.assertEquals(3, started.get());
+        Assert.assertEquals(Integer.valueOf(0), results.get(0)
+                .get());
+
+        for (int i = 1; i < 5; i++) {
+            tasks.get(i)
+                    .complete(i);
+        }
+        Assert.assertEquals(5, started.get());
+        Assert.assertEquals(0, limiter.getQueueDepth());
+        Assert.assertEquals(Integer.valueOf(4), results.get(4)
+                .get());
+    }
+
+    @Test
+    public void test_02_failed_tasks_release_their_permit() throws Exception {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1);
+        final CompletableFuture<String> failed = limiter.submit(() -> {
+            throw new IllegalStateException("Failed to start");
+        });
+        Assert.assertTrue(failed.isCompletedExceptionally());
+        Assert.assertEquals("ok", limiter.submit(() -> CompletableFuture.completedFuture("ok"))
+                .get());
+    }
+
+    @Test
+    public void test_03_cancelling_a_task_releases_its_permit() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1);
+        final CompletableFuture<String> running = new CompletableFuture<>();
+        final AtomicInteger started = new AtomicInteger();
+        final CompletableFuture<String> first = limiter.submit(() -> {
+            started.incrementAndGet();
+            return running;
+        });
+        final CompletableFuture<String> queued = limiter.submit(() -> {
+            started.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        final CompletableFuture<String> last = limiter.submit(() -> {
+            started.incrementAndGet();
+            return CompletableFuture.completedFuture("last");
+        });
+        Assert.assertEquals(1, started.get());
+
+        queued.cancel(true);
+        first.cancel(true);
+        Assert.assertTrue("The running task should be cancelled.", running.isCancelled());
+        Assert.assertEquals("The cancelled queued task should not start.", 2, started.get());
+        Assert.assertEquals("last", last.join());
+        Assert.assertEquals(0, limiter.getQueueDepth());
+    }
+}
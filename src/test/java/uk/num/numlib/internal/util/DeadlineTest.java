@@ -0,0 +1,38 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DeadlineTest {
+
+    @Test
+    public void test_01_interpreter_timeout_is_in_seconds_without_a_deadline() {
+        Assert.assertEquals(1, Deadline.start(1000, 0)
+                .getInterpreterTimeoutSeconds());
+        Assert.assertEquals(3, Deadline.start(2500, 0)
+                .getInterpreterTimeoutSeconds());
+    }
+
+    @Test
+    public void test_02_interpreter_timeout_is_the_time_left_with_a_deadline() {
+        final long seconds = Deadline.start(1000, 5000)
+                .getInterpreterTimeoutSeconds();
+        Assert.assertTrue("Bad timeout: " + seconds, seconds >= 4 && seconds <= 5);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.*;
+
+public class FutureAdapterTest {
+
+    @Test
+    public void test_01_completes_with_the_result() throws Exception {
+        final FutureTask<String> task = new FutureTask<>(() -> "result");
+        final CompletableFuture<String> adapted = FutureAdapter.toCompletableFuture(task);
+        Assert.assertFalse(adapted.isDone());
+
+        task.run();
+        Assert.assertEquals("result", adapted.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void test_02_completes_with_the_failure() throws Exception {
+        final IllegalStateException failure = new IllegalStateException("failed");
+        final FutureTask<String> task = new FutureTask<>(() -> {
+            throw failure;
+        });
+        final CompletableFuture<String> adapted = FutureAdapter.toCompletableFuture(task);
+        task.run();
+        try {
+            adapted.get(5, TimeUnit.SECONDS);
+            Assert.fail("Expected an ExecutionException");
+        } catch (final ExecutionException e) {
+            Assert.assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void test_03_cancel_is_passed_on() {
+        final FutureTask<String> task = new FutureTask<>(() -> "result");
+        FutureAdapter.toCompletableFuture(task)
+                .cancel(true);
+        Assert.assertTrue(task.isCancelled());
+    }
+
+    @Test
+    public void test_04_completion_stages_are_used_directly() {
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        Assert.assertSame(future, FutureAdapter.toCompletableFuture(future));
+    }
+
+}
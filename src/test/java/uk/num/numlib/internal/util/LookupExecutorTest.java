@@ -0,0 +1,65 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.num.numlib.api.NumExecutorStatistics;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class LookupExecutorTest {
+
+    @Test
+    public void test_01_tasks_run_in_parallel() throws Exception {
+        final LookupExecutor executor = new LookupExecutor(4);
+        final CountDownLatch started = new CountDownLatch(4);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 4; i++) {
+            executor.submit(() -> {
+                started.countDown();
+                release.await();
+                return null;
+            });
+        }
+        Assert.assertTrue("Tasks should not queue behind each other.", started.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(4, executor.statistics()
+                .getActiveThreads());
+
+        executor.submit(() -> null);
+        Assert.assertEquals(1, executor.statistics()
+                .getQueueDepth());
+
+        release.countDown();
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        final NumExecutorStatistics statistics = executor.statistics();
+        Assert.assertEquals(5, statistics.getCompletedTasks());
+        Assert.assertEquals(0, statistics.getQueueDepth());
+        Assert.assertTrue(statistics.getMaxWaitMillis() >= statistics.getAverageWaitMillis());
+    }
+
+    @Test
+    public void test_02_statistics_for_other_executors() {
+        final NumExecutorStatistics statistics = LookupExecutor.statisticsFor(Executors.newWorkStealingPool());
+        Assert.assertEquals(-1, statistics.getQueueDepth());
+        Assert.assertEquals(-1, statistics.getAverageWaitMillis());
+    }
+}
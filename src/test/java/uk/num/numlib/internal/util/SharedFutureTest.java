@@ -0,0 +1,57 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+public class SharedFutureTest {
+
+    @Test
+    public void test_01_source_cancelled_when_every_subscriber_cancels() {
+        final SharedFuture<String> shared = new SharedFuture<>();
+        final CompletableFuture<String> source = new CompletableFuture<>();
+        shared.setSource(source);
+        final CompletableFuture<String> first = shared.subscribe(Function.identity());
+        Assert.assertTrue(shared.attach());
+        final CompletableFuture<String> second = shared.subscribe(Function.identity());
+
+        first.cancel(true);
+        Assert.assertFalse("One subscriber is still waiting.", source.isCancelled());
+
+        second.cancel(true);
+        Assert.assertTrue(source.isCancelled());
+        Assert.assertFalse("An abandoned result cannot be attached to.", shared.attach());
+    }
+
+    @Test
+    public void test_02_subscribers_share_the_result() throws Exception {
+        final SharedFuture<String> shared = new SharedFuture<>();
+        final CompletableFuture<String> source = new CompletableFuture<>();
+        shared.setSource(source);
+        final CompletableFuture<String> first = shared.subscribe(Function.identity());
+        Assert.assertTrue(shared.attach());
+        final CompletableFuture<Integer> second = shared.subscribe(String::length);
+
+        source.complete("result");
+        Assert.assertEquals("result", first.get());
+        Assert.assertEquals(Integer.valueOf(6), second.get());
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ *    Copyright 2020 NUM Technology Ltd
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package uk.num.numlib.internal.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void test_01_tasks_run_on_virtual_threads_when_supported() throws Exception {
+        if (!VirtualThreads.isSupported()) {
+            return;
+        }
+        final ExecutorService executor = VirtualThreads.newVirtualThreadPerTaskExecutor();
+        try {
+            final Object isVirtual = executor.submit(() -> Thread.class.getMethod("isVirtual")
+                    .invoke(Thread.currentThread()))
+                    .get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(Boolean.TRUE, isVirtual);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void test_02_executor_is_unavailable_when_not_supported() {
+        if (VirtualThreads.isSupported()) {
+            return;
+        }
+        try {
+            VirtualThreads.newVirtualThreadPerTaskExecutor();
+            Assert.fail("Expected an exception.");
+        } catch (final UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}